@@ -0,0 +1,367 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.coprocessor.AggregationClient;
+import org.apache.hadoop.hbase.coprocessor.AggregateImplementation;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ *
+ *
+ * @Filename HbaseAggregator.java
+ *
+ * @Description 服务端聚合：行数、求和、最小值、最大值通过AggregateImplementation协处理器在各region上计算，
+ *              客户端并行调用各region后合并，只传输每个region的结果；
+ *              加盐表每个桶一个请求并行执行后合并；按列值分组计数按region并行扫描只读取该列
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseAggregator {
+
+	/**
+	 * 列值按十进制字符串解析
+	 */
+	private static final HbaseStringLongColumnInterpreter	INTERPRETER	= new HbaseStringLongColumnInterpreter();
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection								connection;
+
+	/**
+	 * AggregationClient使用的配置
+	 */
+	private final Configuration								conf;
+
+	/**
+	 * 加盐表按桶拆分请求
+	 */
+	private final HbaseSalting								salting;
+
+	/**
+	 * 并行执行各桶、各region请求的线程池
+	 */
+	private final ExecutorService							executor;
+
+	/**
+	 * 第一次聚合时创建，AggregationClient会建立自己的连接
+	 */
+	private volatile AggregationClient						client;
+
+	public HbaseAggregator(Connection connection, Configuration conf, HbaseSalting salting,
+							ExecutorService executor) {
+		this.connection = connection;
+		this.conf = conf;
+		this.salting = salting;
+		this.executor = executor;
+	}
+
+	/**
+	 * 表上加载AggregateImplementation协处理器，已加载的不处理；
+	 * 也可以在hbase-site.xml的hbase.coprocessor.region.classes中对所有表加载
+	 * @param admin
+	 * @param tableName
+	 * @throws IOException
+	 */
+	public static void enable(Admin admin, String tableName) throws IOException {
+		TableName tn = TableName.valueOf(tableName);
+		HTableDescriptor htd = admin.getTableDescriptor(tn);
+		if (!htd.hasCoprocessor(AggregateImplementation.class.getName())) {
+			htd.addCoprocessor(AggregateImplementation.class.getName());
+			admin.modifyTable(tn, htd);
+		}
+	}
+
+	/**
+	 * 行数，scan最多一个列族
+	 * @param tableName
+	 * @param scan 原rowkey上的scan
+	 * @return
+	 * @throws IOException
+	 */
+	public long rowCount(String tableName, Scan scan) throws IOException {
+		long count = 0;
+		for (Long c : perBucket(tableName, scan, new AggregateCall<Long>() {
+			@Override
+			public Long call(AggregationClient client, TableName tn, Scan s) throws Throwable {
+				return client.rowCount(tn, INTERPRETER, s);
+			}
+		})) {
+			count += c;
+		}
+		return count;
+	}
+
+	/**
+	 * 求和，scan只能有一个列族的一列
+	 * @param tableName
+	 * @param scan
+	 * @return 没有数字值时为0
+	 * @throws IOException
+	 */
+	public long sum(String tableName, Scan scan) throws IOException {
+		long sum = 0;
+		for (Long s : perBucket(tableName, scan, new AggregateCall<Long>() {
+			@Override
+			public Long call(AggregationClient client, TableName tn, Scan s) throws Throwable {
+				return client.sum(tn, INTERPRETER, s);
+			}
+		})) {
+			if (null != s) {
+				sum += s;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * 最小值，scan只能有一个列族的一列
+	 * @param tableName
+	 * @param scan
+	 * @return 没有数字值时为null
+	 * @throws IOException
+	 */
+	public Long min(String tableName, Scan scan) throws IOException {
+		Long min = null;
+		for (Long m : perBucket(tableName, scan, new AggregateCall<Long>() {
+			@Override
+			public Long call(AggregationClient client, TableName tn, Scan s) throws Throwable {
+				return client.min(tn, INTERPRETER, s);
+			}
+		})) {
+			if (null != m && (null == min || m < min)) {
+				min = m;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * 最大值，scan只能有一个列族的一列
+	 * @param tableName
+	 * @param scan
+	 * @return 没有数字值时为null
+	 * @throws IOException
+	 */
+	public Long max(String tableName, Scan scan) throws IOException {
+		Long max = null;
+		for (Long m : perBucket(tableName, scan, new AggregateCall<Long>() {
+			@Override
+			public Long call(AggregationClient client, TableName tn, Scan s) throws Throwable {
+				return client.max(tn, INTERPRETER, s);
+			}
+		})) {
+			if (null != m && (null == max || m > max)) {
+				max = m;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * 按列值分组计数：scan按region(加盐表按桶)拆分后并行扫描，每行只取该列，客户端合并各部分的计数
+	 * @param tableName
+	 * @param scan 原rowkey上的scan，需包含该列
+	 * @param family
+	 * @param qualifier
+	 * @return 列值 -> 行数，没有该列的行不计数
+	 * @throws IOException
+	 */
+	public Map<String, Long> groupCount(final String tableName, Scan scan, final byte[] family,
+										final byte[] qualifier) throws IOException {
+		List<Scan> scans = salting.isSalted(tableName) ? HbaseSalting.bucketScans(scan, salting
+			.buckets(tableName)) : regionScans(tableName, scan);
+		List<Future<Map<String, Long>>> futures = new ArrayList<Future<Map<String, Long>>>(
+			scans.size());
+		for (final Scan s : scans) {
+			s.setCacheBlocks(false);
+			futures.add(executor.submit(new Callable<Map<String, Long>>() {
+				@Override
+				public Map<String, Long> call() throws Exception {
+					Map<String, Long> counts = new HashMap<String, Long>();
+					Table table = connection.getTable(TableName.valueOf(tableName));
+					ResultScanner scanner = null;
+					try {
+						scanner = table.getScanner(s);
+						for (Result result : scanner) {
+							byte[] value = result.getValue(family, qualifier);
+							if (null != value) {
+								String key = Bytes.toString(value);
+								Long c = counts.get(key);
+								counts.put(key, null == c ? 1L : c + 1);
+							}
+						}
+					} finally {
+						HbaseDaoImpl.closeConnect(scanner);
+						HbaseDaoImpl.closeConnect(table);
+					}
+					return counts;
+				}
+			}));
+		}
+
+		Map<String, Long> merged = new HashMap<String, Long>();
+		for (Map<String, Long> counts : await(futures)) {
+			for (Map.Entry<String, Long> e : counts.entrySet()) {
+				Long c = merged.get(e.getKey());
+				merged.put(e.getKey(), null == c ? e.getValue() : c + e.getValue());
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * 关闭AggregationClient的连接
+	 */
+	public void close() {
+		AggregationClient c = client;
+		if (null != c) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// 关闭时忽略
+			}
+		}
+	}
+
+	/**
+	 * 加盐表每个桶一个请求并行执行，AggregationClient内部再并行调用桶内的各region
+	 * @param tableName
+	 * @param scan
+	 * @param call
+	 * @return 每个桶的结果
+	 * @throws IOException
+	 */
+	private <T> List<T> perBucket(String tableName, Scan scan, final AggregateCall<T> call)
+																							throws IOException {
+		final AggregationClient c = client();
+		final TableName tn = TableName.valueOf(tableName);
+		if (!salting.isSalted(tableName)) {
+			try {
+				return Collections.singletonList(call.call(c, tn, scan));
+			} catch (Throwable e) {
+				throw toIOException(e);
+			}
+		}
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (final Scan s : HbaseSalting.bucketScans(scan, salting.buckets(tableName))) {
+			futures.add(executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					try {
+						return call.call(c, tn, s);
+					} catch (Throwable e) {
+						throw toIOException(e);
+					}
+				}
+			}));
+		}
+		return await(futures);
+	}
+
+	/**
+	 * 按region边界拆分scan，每个region一个
+	 * @param tableName
+	 * @param scan
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Scan> regionScans(String tableName, Scan scan) throws IOException {
+		byte[] start = scan.getStartRow();
+		byte[] stop = scan.getStopRow();
+		Pair<byte[][], byte[][]> keys;
+		RegionLocator locator = connection.getRegionLocator(TableName.valueOf(tableName));
+		try {
+			keys = locator.getStartEndKeys();
+		} finally {
+			locator.close();
+		}
+		List<Scan> scans = new ArrayList<Scan>();
+		for (int i = 0; i < keys.getFirst().length; i++) {
+			byte[] regionStart = keys.getFirst()[i];
+			byte[] regionEnd = keys.getSecond()[i];
+
+			// 与scan范围不相交的region跳过
+			if (stop.length != 0 && Bytes.compareTo(regionStart, stop) >= 0) {
+				continue;
+			}
+			if (regionEnd.length != 0 && Bytes.compareTo(regionEnd, start) <= 0) {
+				continue;
+			}
+			Scan s = new Scan(scan);
+			s.setStartRow(Bytes.compareTo(regionStart, start) > 0 ? regionStart : start);
+			s.setStopRow(regionEnd.length != 0 && (stop.length == 0 || Bytes.compareTo(regionEnd,
+				stop) < 0) ? regionEnd : stop);
+			scans.add(s);
+		}
+		return scans;
+	}
+
+	private AggregationClient client() {
+		AggregationClient c = client;
+		if (null == c) {
+			synchronized (this) {
+				c = client;
+				if (null == c) {
+					c = new AggregationClient(conf);
+					client = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	private static <T> List<T> await(List<Future<T>> futures) throws IOException {
+		List<T> results = new ArrayList<T>(futures.size());
+		try {
+			for (Future<T> f : futures) {
+				results.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("聚合被中断");
+		} catch (ExecutionException e) {
+			throw toIOException(e.getCause());
+		} finally {
+			for (Future<T> f : futures) {
+				f.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	private static IOException toIOException(Throwable e) {
+		return e instanceof IOException ? (IOException) e : new IOException(e);
+	}
+
+	/**
+	 * 对一个scan调用AggregationClient
+	 */
+	private interface AggregateCall<T> {
+
+		T call(AggregationClient client, TableName tn, Scan scan) throws Throwable;
+	}
+}
@@ -0,0 +1,67 @@
+package com.touna.dao.impl;
+
+/**
+ *
+ *
+ * @Filename HbaseAimdLimit.java
+ *
+ * @Description 加性增、乘性减(AIMD)的自适应上限：写入顺利时每次加一个步长，
+ *              regionserver变慢或拒绝时按比例缩小，在[min, max]之间收敛到集群当前能承受的值
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseAimdLimit {
+
+	private final long		min;
+
+	private final long		max;
+
+	/**
+	 * 加性增的步长
+	 */
+	private final long		step;
+
+	/**
+	 * 乘性减的比例，(0,1)
+	 */
+	private final double	backoff;
+
+	private volatile long	value;
+
+	/**
+	 * @param min
+	 * @param max 初始值
+	 * @param step
+	 * @param backoff
+	 */
+	public HbaseAimdLimit(long min, long max, long step, double backoff) {
+		if (min < 1 || max < min || step < 1 || backoff <= 0 || backoff >= 1) {
+			throw new IllegalArgumentException("min:" + min + " max:" + max + " step:" + step
+												+ " backoff:" + backoff);
+		}
+		this.min = min;
+		this.max = max;
+		this.step = step;
+		this.backoff = backoff;
+		this.value = max;
+	}
+
+	public long get() {
+		return value;
+	}
+
+	/**
+	 * 写入顺利，加一个步长
+	 */
+	public synchronized void increase() {
+		value = Math.min(max, value + step);
+	}
+
+	/**
+	 * 变慢或失败，按比例缩小
+	 */
+	public synchronized void decrease() {
+		value = Math.max(min, (long) (value * backoff));
+	}
+}
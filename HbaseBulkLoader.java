@@ -0,0 +1,330 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbaseBulkLoader.java
+ *
+ * @Description 大批量put绕过wal和memstore：在客户端排序后按表的region边界、列族直接写hfile，
+ *              再通过LoadIncrementalHFiles交给regionserver加载，每个region的加载是原子的
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseBulkLoader {
+
+	/**
+	 * 日志
+	 */
+	private static final Logger		logger	= LoggerFactory.getLogger(HbaseBulkLoader.class);
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection		connection;
+
+	/**
+	 * 写hfile和加载使用的配置
+	 */
+	private final Configuration		conf;
+
+	/**
+	 * hfile暂存目录(完整uri)，需要与hbase在同一个hdfs上才能直接rename，否则regionserver会先拷贝
+	 */
+	private final Path				stagingDir;
+
+	/**
+	 * 达到该行数的批量写入走bulk load
+	 */
+	private final int				thresholdRows;
+
+	/**
+	 * 异步bulk load线程，同一时间只跑一个，避免多个大批次同时占用磁盘和网络
+	 */
+	private final ExecutorService	executor;
+
+	/**
+	 * @param connection
+	 * @param conf
+	 * @param stagingDir hfile暂存目录，不带hdfs://前缀时使用hbase.rootdir(未配置时fs.defaultFS)所在的文件系统
+	 * @param thresholdRows 达到该行数的批量写入走bulk load
+	 * @throws IOException 暂存目录在本地文件系统，regionserver读不到hfile
+	 */
+	public HbaseBulkLoader(Connection connection, Configuration conf, String stagingDir,
+							int thresholdRows) throws IOException {
+		this.connection = connection;
+		this.conf = conf;
+		this.stagingDir = qualify(conf, new Path(stagingDir));
+		this.thresholdRows = thresholdRows;
+		this.executor = Executors.newSingleThreadExecutor(new HbaseThreadFactory(
+			"hbase-bulk-load"));
+	}
+
+	/**
+	 * 暂存目录补全为完整uri，并检查regionserver能否读到
+	 * @param conf
+	 * @param dir
+	 * @return
+	 * @throws IOException
+	 */
+	static Path qualify(Configuration conf, Path dir) throws IOException {
+		if (null == dir.toUri().getScheme()) {
+			String rootDir = conf.get(HConstants.HBASE_DIR);
+			Path root = null == rootDir ? null : new Path(rootDir);
+			FileSystem fs = null == root || null == root.toUri().getScheme() ? FileSystem.get(conf)
+				: root.getFileSystem(conf);
+			dir = fs.makeQualified(dir);
+		}
+
+		// 客户端配置只有zookeeper时默认文件系统是本地，hfile写在本机，其他机器上的regionserver读不到
+		if ("file".equals(dir.toUri().getScheme())) {
+			throw new IOException("bulk load暂存目录" + dir
+									+ "在本地文件系统，regionserver无法读取，请配置hdfs上的完整路径");
+		}
+		return dir;
+	}
+
+	/**
+	 * 是否应该走bulk load
+	 * @param rows
+	 * @return
+	 */
+	public boolean accept(int rows) {
+		return thresholdRows > 0 && rows >= thresholdRows;
+	}
+
+	/**
+	 * 在后台线程bulk load，加载完成后future完成
+	 * @param tableName
+	 * @param puts 复制一份，调用方可以继续复用自己的list
+	 * @return
+	 */
+	public CompletableFuture<Void> loadAsyn(final String tableName, List<Put> puts) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final List<Put> copy = new ArrayList<Put>(puts);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(tableName, copy);
+						future.complete(null);
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * 排序、按region和列族写hfile并加载
+	 * @param tableName
+	 * @param puts
+	 * @throws IOException
+	 */
+	public void load(String tableName, List<Put> puts) throws IOException {
+		long now = System.currentTimeMillis();
+		List<KeyValue> kvs = sortedKeyValues(puts, now);
+		if (kvs.isEmpty()) {
+			return;
+		}
+
+		TableName tn = TableName.valueOf(tableName);
+		Path dir = new Path(stagingDir, tn.getNameAsString().replace(':', '_') + "_"
+										+ UUID.randomUUID().toString());
+		FileSystem fs = dir.getFileSystem(conf);
+		Table table = null;
+		RegionLocator locator = null;
+		Admin admin = null;
+		boolean loaded = false;
+		try {
+			table = connection.getTable(tn);
+			locator = connection.getRegionLocator(tn);
+			admin = connection.getAdmin();
+			int files = writeHFiles(fs, dir, table.getTableDescriptor(), locator, kvs, now);
+
+			// region在写hfile期间分裂的，由LoadIncrementalHFiles拆分hfile后再加载
+			new LoadIncrementalHFiles(conf).doBulkLoad(dir, admin, table, locator);
+			loaded = true;
+			logger.info("表:{} bulk load完成，cell数:{}，hfile数:{}，耗时:{}", tableName, kvs.size(),
+				files, (System.currentTimeMillis() - now));
+		} finally {
+			HbaseDaoImpl.closeConnect(table);
+			if (null != locator) {
+				locator.close();
+			}
+			if (null != admin) {
+				admin.close();
+			}
+
+			// 失败时保留目录，便于排查和重新加载剩余的hfile
+			if (loaded) {
+				fs.delete(dir, true);
+			} else {
+				logger.error("表:{} bulk load失败，hfile保留在:{}", tableName, dir);
+			}
+		}
+	}
+
+	/**
+	 * 停止接受新的异步bulk load，已提交的继续执行
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * 拆成cell并按KeyValue顺序排序，未指定时间戳的使用本次加载的时间；
+	 * 同一行同一列同一时间戳出现多次时保留最后一次put的值，与逐条put的结果一致
+	 * @param puts
+	 * @param now
+	 * @return
+	 */
+	private static List<KeyValue> sortedKeyValues(List<Put> puts, long now) {
+		List<KeyValue> kvs = new ArrayList<KeyValue>();
+		for (Put put : puts) {
+			for (List<Cell> cells : put.getFamilyCellMap().values()) {
+				for (Cell c : cells) {
+					long ts = c.getTimestamp() == HConstants.LATEST_TIMESTAMP ? now : c
+						.getTimestamp();
+					kvs.add(new KeyValue(CellUtil.cloneRow(c), CellUtil.cloneFamily(c), CellUtil
+						.cloneQualifier(c), ts, KeyValue.Type.Put, CellUtil.cloneValue(c)));
+				}
+			}
+		}
+
+		// 稳定排序，相同key保持put的先后顺序
+		Collections.sort(kvs, KeyValue.COMPARATOR);
+		List<KeyValue> deduped = new ArrayList<KeyValue>(kvs.size());
+		for (KeyValue kv : kvs) {
+			int last = deduped.size() - 1;
+			if (last >= 0 && KeyValue.COMPARATOR.compare(deduped.get(last), kv) == 0) {
+				deduped.set(last, kv);
+			} else {
+				deduped.add(kv);
+			}
+		}
+		return deduped;
+	}
+
+	/**
+	 * 按region边界和列族写hfile，目录结构为dir/列族/hfile
+	 * @param fs
+	 * @param dir
+	 * @param desc
+	 * @param locator
+	 * @param kvs 已排序
+	 * @param now
+	 * @return hfile数
+	 * @throws IOException
+	 */
+	private int writeHFiles(FileSystem fs, Path dir, HTableDescriptor desc,
+							RegionLocator locator, List<KeyValue> kvs, long now)
+																				throws IOException {
+		byte[][] endKeys = locator.getEndKeys();
+
+		// 写hfile不需要block cache
+		Configuration writerConf = new Configuration(conf);
+		writerConf.setFloat(HConstants.HFILE_BLOCK_CACHE_SIZE_KEY, 0.0f);
+		CacheConfig cacheConf = new CacheConfig(writerConf);
+
+		Map<byte[], StoreFile.Writer> writers = new TreeMap<byte[], StoreFile.Writer>(
+			Bytes.BYTES_COMPARATOR);
+		int region = 0;
+		int files = 0;
+		try {
+			for (KeyValue kv : kvs) {
+
+				// 跨过当前region的endKey时关闭该region的所有hfile
+				while (endKeys[region].length != 0
+						&& Bytes.compareTo(kv.getRowArray(), kv.getRowOffset(), kv.getRowLength(),
+							endKeys[region], 0, endKeys[region].length) >= 0) {
+					files += closeWriters(writers, now);
+					region++;
+				}
+				byte[] family = CellUtil.cloneFamily(kv);
+				StoreFile.Writer writer = writers.get(family);
+				if (null == writer) {
+					HColumnDescriptor hcd = desc.getFamily(family);
+					if (null == hcd) {
+						throw new IOException("列族不存在：" + Bytes.toString(family));
+					}
+					HFileContext context = new HFileContextBuilder()
+						.withCompression(hcd.getCompressionType())
+						.withDataBlockEncoding(hcd.getDataBlockEncoding())
+						.withBlockSize(hcd.getBlocksize()).withIncludesTags(false).build();
+					writer = new StoreFile.WriterBuilder(writerConf, cacheConf, fs)
+						.withOutputDir(new Path(dir, Bytes.toString(family)))
+						.withBloomType(hcd.getBloomFilterType())
+						.withComparator(KeyValue.COMPARATOR).withFileContext(context).build();
+					writers.put(family, writer);
+				}
+				writer.append(kv);
+			}
+		} finally {
+			files += closeWriters(writers, now);
+		}
+		return files;
+	}
+
+	/**
+	 * 写入bulk load元数据并关闭
+	 * @param writers
+	 * @param now
+	 * @return 关闭的hfile数
+	 * @throws IOException
+	 */
+	private static int closeWriters(Map<byte[], StoreFile.Writer> writers, long now)
+																					throws IOException {
+		int n = writers.size();
+		for (StoreFile.Writer writer : writers.values()) {
+			writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(now));
+			writer.appendFileInfo(StoreFile.BULKLOAD_TASK_KEY, Bytes.toBytes("HbaseDaoImpl"));
+			writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+			writer.appendTrackedTimestampsToMetadata();
+			writer.close();
+		}
+		writers.clear();
+		return n;
+	}
+}
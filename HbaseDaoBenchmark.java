@@ -0,0 +1,276 @@
+package com.touna.dao.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.touna.bean.HBasePageModel;
+import com.touna.dao.impl.HbaseDaoImpl;
+
+/**
+ *
+ *
+ * @Filename HbaseDaoBenchmark.java
+ *
+ * @Description HbaseDao各操作的jmh压测，每个fork启动一个进程内的hbase mini-cluster，
+ *              按行大小、批量大小参数化，线程数由main按bench.threads依次运行，
+ *              同时输出吞吐和延迟分位数，结果为json
+ *
+ * @Version 1.0
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class HbaseDaoBenchmark {
+
+	private static final String	TABLE		= "jmh_hbase_dao";
+
+	private static final byte[]	CF			= Bytes.toBytes("cf");
+
+	private static final byte[]	QUALIFIER	= Bytes.toBytes("c1");
+
+	/**
+	 * 单行value字节数
+	 */
+	@Param({ "100", "1000" })
+	private int					rowSize;
+
+	/**
+	 * 批量写入、批量读取、范围扫描的行数
+	 */
+	@Param({ "10", "100" })
+	private int					batchSize;
+
+	/**
+	 * 预先写入供读和扫描使用的行数
+	 */
+	@Param({ "100000" })
+	private int					preloadRows;
+
+	private HBaseTestingUtility	util;
+
+	private HbaseDaoImpl		dao;
+
+	private byte[]				value;
+
+	/**
+	 * 启动mini-cluster并预写数据，HbaseDaoImpl在此之后才初始化，连接到mini-cluster
+	 * @throws Exception
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		util = new HBaseTestingUtility();
+		util.startMiniCluster();
+		util.createTable(TableName.valueOf(TABLE), CF, splitKeys(8));
+
+		System.setProperty("hbase.zookeeper.quorum", "localhost");
+		System.setProperty("hbase.zookeeper.property.clientPort",
+			String.valueOf(util.getZkCluster().getClientPort()));
+		dao = HbaseDaoImpl.getInstance();
+
+		value = new byte[rowSize];
+		new Random(0).nextBytes(value);
+
+		List<Put> puts = new ArrayList<Put>();
+		for (int i = 0; i < preloadRows; i++) {
+			puts.add(newPut(rowKey(i)));
+			if (puts.size() == 1000) {
+				dao.addDataBatch(TABLE, puts);
+				puts = new ArrayList<Put>();
+			}
+		}
+		if (!puts.isEmpty()) {
+			dao.addDataBatch(TABLE, puts);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		HbaseDaoImpl.shutdown();
+		util.shutdownMiniCluster();
+	}
+
+	/**
+	 * 每个线程自己的rowkey序列和随机数
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		private final Random	random	= new Random();
+
+		private long			seq		= 0;
+
+		private final String	prefix	= "w" + Thread.currentThread().getId() + "_";
+
+		String nextWriteKey() {
+			return prefix + (seq++);
+		}
+
+		int nextReadIndex(int bound) {
+			return random.nextInt(bound);
+		}
+	}
+
+	@Benchmark
+	public void addData(ThreadState ts) throws Exception {
+		dao.addData(TABLE, newPut(ts.nextWriteKey()));
+	}
+
+	@Benchmark
+	public void addDataBatch(ThreadState ts) throws Exception {
+		dao.addDataBatch(TABLE, newPuts(ts));
+	}
+
+	/**
+	 * 只入队，调用方感知的延迟
+	 */
+	@Benchmark
+	public void addDataBatchAsyn(ThreadState ts) throws Exception {
+		dao.addDataBatchAsyn(TABLE, newPuts(ts));
+	}
+
+	/**
+	 * 入队到写入hbase完成的延迟
+	 */
+	@Benchmark
+	public void addDataBatchAsynDurable(ThreadState ts) throws Exception {
+		dao.addDataBatchAsynFuture(TABLE, newPuts(ts)).get();
+	}
+
+	@Benchmark
+	public Result getRow(ThreadState ts) throws Exception {
+		return dao.getRow(TABLE, rowKey(ts.nextReadIndex(preloadRows)), null);
+	}
+
+	@Benchmark
+	public Result[] getRows(ThreadState ts) throws Exception {
+		List<String> rows = new ArrayList<String>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			rows.add(rowKey(ts.nextReadIndex(preloadRows)));
+		}
+		return dao.getRows(TABLE, rows, null);
+	}
+
+	@Benchmark
+	public List<Result> getRowsByStartAndStop(ThreadState ts) throws Exception {
+		int start = ts.nextReadIndex(preloadRows - batchSize);
+		return dao.getRowsByStartAndStop(TABLE, rowKey(start), rowKey(start + batchSize));
+	}
+
+	@Benchmark
+	public List<Result> getRowsByFilters(ThreadState ts) throws Exception {
+		int start = ts.nextReadIndex(preloadRows - batchSize);
+		SingleColumnValueFilter scvf = new SingleColumnValueFilter(CF, QUALIFIER,
+			CompareOp.EQUAL, value);
+		RowFilter rf = new RowFilter(CompareOp.GREATER_OR_EQUAL, new BinaryComparator(
+			Bytes.toBytes(rowKey(start))));
+		return dao.getRowsByFilters(TABLE, rowKey(start), rowKey(start + batchSize),
+			Arrays.asList(scvf), Arrays.asList(rf), FilterList.Operator.MUST_PASS_ALL);
+	}
+
+	/**
+	 * 从第一页开始顺序翻页
+	 */
+	@Benchmark
+	public HBasePageModel scanResultByPageModel() throws Exception {
+		HBasePageModel pageModel = new HBasePageModel();
+		pageModel.setTableName(TABLE);
+		pageModel.setPageSize(batchSize);
+		return dao.scanResultByPageModel(pageModel);
+	}
+
+	/**
+	 * 随机跳页
+	 */
+	@Benchmark
+	public HBasePageModel scanResultByPageModelAnyPage(ThreadState ts) throws Exception {
+		HBasePageModel pageModel = new HBasePageModel();
+		pageModel.setTableName(TABLE);
+		pageModel.setPageSize(batchSize);
+		pageModel.setPageIndex(ts.nextReadIndex(preloadRows / batchSize) + 1);
+		return dao.scanResultByPageModelAnyPage(pageModel);
+	}
+
+	private Put newPut(String row) {
+		Put put = new Put(Bytes.toBytes(row));
+		put.addColumn(CF, QUALIFIER, value);
+		return put;
+	}
+
+	private List<Put> newPuts(ThreadState ts) {
+		List<Put> puts = new ArrayList<Put>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			puts.add(newPut(ts.nextWriteKey()));
+		}
+		return puts;
+	}
+
+	/**
+	 * 定长rowkey，保证字典序与数字序一致
+	 */
+	private static String rowKey(int i) {
+		return String.format("r%010d", i);
+	}
+
+	/**
+	 * 预写数据范围内均匀预分区
+	 */
+	private byte[][] splitKeys(int regions) {
+		byte[][] splits = new byte[regions - 1][];
+		for (int i = 1; i < regions; i++) {
+			splits[i - 1] = Bytes.toBytes(rowKey(preloadRows / regions * i));
+		}
+		return splits;
+	}
+
+	/**
+	 * 运行全部压测，bench.threads为逗号分隔的线程数，每个线程数输出一个json结果文件
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String threads = System.getProperty("bench.threads", "1,8,32");
+		String include = System.getProperty("bench.include", HbaseDaoBenchmark.class.getName());
+		for (String t : threads.split(",")) {
+			int n = Integer.parseInt(t.trim());
+			Options opt = new OptionsBuilder().include(include).threads(n)
+				.resultFormat(ResultFormatType.JSON).result("jmh-hbase-dao-t" + n + ".json")
+				.build();
+			new Runner(opt).run();
+		}
+	}
+}
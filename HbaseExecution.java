@@ -0,0 +1,207 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbaseExecution.java
+ *
+ * @Description 阻塞式dao操作的执行器：jdk21及以上每个任务一个虚拟线程，大量并发查询不再需要大线程池；
+ *              低版本jdk退化为最多global个线程的线程池。全局和每张表各有并发上限，
+ *              超过上限的任务在虚拟线程中排队等待许可，等待超时失败。
+ *              hbase 1.x客户端内部大量使用synchronized，jdk24之前虚拟线程在其中阻塞会占住载体线程，
+ *              全局上限同时也限制了这种占用
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseExecution {
+
+	private static final Logger						logger	= LoggerFactory
+																.getLogger(HbaseExecution.class);
+
+	private final ExecutorService					executor;
+
+	/**
+	 * 是否使用虚拟线程
+	 */
+	private final boolean							virtual;
+
+	/**
+	 * 全局并发上限
+	 */
+	private final Semaphore							global;
+
+	/**
+	 * 每张表的并发上限
+	 */
+	private final int								tableLimit;
+
+	/**
+	 * 表名 -> 该表的许可
+	 */
+	private final ConcurrentMap<String, Semaphore>	tables	= new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * 等待许可的最长时间
+	 */
+	private final long								acquireTimeoutMs;
+
+	/**
+	 * @param useVirtual 为true且jdk支持时使用虚拟线程
+	 * @param globalLimit 全局并发上限
+	 * @param tableLimit 每张表的并发上限
+	 * @param acquireTimeoutMs 等待许可的最长时间
+	 */
+	public HbaseExecution(boolean useVirtual, int globalLimit, int tableLimit,
+							long acquireTimeoutMs) {
+		if (globalLimit < 1 || tableLimit < 1) {
+			throw new IllegalArgumentException("并发上限需大于0，global:" + globalLimit + " table:"
+												+ tableLimit);
+		}
+		ExecutorService vt = useVirtual ? newVirtualThreadExecutor() : null;
+		if (null != vt) {
+			this.executor = vt;
+			this.virtual = true;
+		} else {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(globalLimit, globalLimit, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new HbaseThreadFactory(
+					"hbase-exec"));
+			pool.allowCoreThreadTimeOut(true);
+			this.executor = pool;
+			this.virtual = false;
+		}
+		this.global = new Semaphore(globalLimit);
+		this.tableLimit = tableLimit;
+		this.acquireTimeoutMs = acquireTimeoutMs;
+	}
+
+	/**
+	 * jdk21的Executors.newVirtualThreadPerTaskExecutor()，源码按jdk8编译所以反射调用
+	 * @return 不支持时返回null
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (NoSuchMethodException e) {
+			logger.info("jdk不支持虚拟线程，使用线程池执行");
+		} catch (Exception e) {
+			logger.warn("创建虚拟线程执行器失败，使用线程池执行", e);
+		}
+		return null;
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * 在调用线程中执行，占用全局和表的许可，调用方本身在虚拟线程中时使用
+	 * @param tableName
+	 * @param task
+	 * @return
+	 * @throws Exception task的异常，或等待许可超时的IOException
+	 */
+	public <T> T call(String tableName, Callable<T> task) throws Exception {
+		Semaphore table = permits(tableName);
+		acquire(global, "全局");
+		try {
+			acquire(table, tableName);
+			try {
+				return task.call();
+			} finally {
+				table.release();
+			}
+		} finally {
+			global.release();
+		}
+	}
+
+	/**
+	 * 提交到执行器，在执行线程中等待许可后执行
+	 * @param tableName
+	 * @param task
+	 * @return
+	 */
+	public <T> Future<T> submit(final String tableName, final Callable<T> task) {
+		return executor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return HbaseExecution.this.call(tableName, task);
+			}
+		});
+	}
+
+	/**
+	 * 新的扇出作用域，在其中fork的任务一起等待，一个失败取消其余
+	 * @return
+	 */
+	public <T> HbaseFanOut<T> fanOut() {
+		return new HbaseFanOut<T>(this);
+	}
+
+	/**
+	 * 表当前可用的许可数
+	 * @param tableName
+	 * @return
+	 */
+	public int availablePermits(String tableName) {
+		Semaphore s = tables.get(tableName);
+		return null == s ? tableLimit : s.availablePermits();
+	}
+
+	public int availableGlobalPermits() {
+		return global.availablePermits();
+	}
+
+	ExecutorService executor() {
+		return executor;
+	}
+
+	private Semaphore permits(String tableName) {
+		Semaphore s = tables.get(tableName);
+		if (null == s) {
+			Semaphore created = new Semaphore(tableLimit);
+			s = tables.putIfAbsent(tableName, created);
+			if (null == s) {
+				s = created;
+			}
+		}
+		return s;
+	}
+
+	private void acquire(Semaphore s, String name) throws IOException {
+		try {
+			if (!s.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+				throw new IOException(name + "并发已达上限，等待" + acquireTimeoutMs + "ms超时");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待" + name + "并发许可被中断");
+		}
+	}
+
+	/**
+	 * 关闭执行器，不再接收新任务
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+}
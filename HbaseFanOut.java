@@ -0,0 +1,140 @@
+package com.touna.dao.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ *
+ * @Filename HbaseFanOut.java
+ *
+ * @Description 扇出作用域：fork的查询在HbaseExecution中并发执行，join按fork顺序返回全部结果，
+ *              任一失败或超时时取消其余并抛出异常；close取消未完成的任务，配合try/finally使用，
+ *              作用域结束后不会留下后台任务。非线程安全，在创建它的线程中fork和join
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseFanOut<T> implements Closeable {
+
+	private final HbaseExecution			execution;
+
+	/**
+	 * 按fork顺序
+	 */
+	private final List<FutureTask<T>>		tasks		= new ArrayList<FutureTask<T>>();
+
+	/**
+	 * 已完成的任务
+	 */
+	private final BlockingQueue<Future<T>>	completed	= new LinkedBlockingQueue<Future<T>>();
+
+	HbaseFanOut(HbaseExecution execution) {
+		this.execution = execution;
+	}
+
+	/**
+	 * 提交一个查询，占用表和全局的并发许可
+	 * @param tableName
+	 * @param task
+	 * @return
+	 */
+	public Future<T> fork(final String tableName, final Callable<T> task) {
+		FutureTask<T> f = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return execution.call(tableName, task);
+			}
+		}) {
+			@Override
+			protected void done() {
+				completed.add(this);
+			}
+		};
+		tasks.add(f);
+		try {
+			execution.executor().execute(f);
+		} catch (RejectedExecutionException e) {
+			f.cancel(false);
+		}
+		return f;
+	}
+
+	/**
+	 * 等待全部任务完成
+	 * @return 按fork顺序的结果
+	 * @throws IOException 第一个失败的任务的异常，其余任务已取消
+	 */
+	public List<T> join() throws IOException {
+		return join(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 等待全部任务完成
+	 * @param timeout 小于1不限制
+	 * @param unit
+	 * @return 按fork顺序的结果
+	 * @throws IOException 第一个失败的任务的异常或超时，其余任务已取消
+	 */
+	public List<T> join(long timeout, TimeUnit unit) throws IOException {
+		long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+		try {
+			for (int n = 0; n < tasks.size(); n++) {
+				Future<T> f;
+				if (deadline == 0) {
+					f = completed.take();
+				} else {
+					f = completed.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (null == f) {
+						close();
+						throw new IOException("扇出查询超时，完成" + n + "/" + tasks.size());
+					}
+				}
+				if (f.isCancelled()) {
+					close();
+					throw new IOException("扇出查询已取消");
+				}
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					close();
+					throw HbaseDaoImpl.toIOException(e);
+				}
+			}
+			List<T> results = new ArrayList<T>(tasks.size());
+			for (FutureTask<T> f : tasks) {
+				results.add(f.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待扇出查询被中断");
+		} catch (ExecutionException e) {
+
+			// 前面已确认全部成功
+			throw HbaseDaoImpl.toIOException(e);
+		}
+	}
+
+	/**
+	 * 取消未完成的任务
+	 */
+	@Override
+	public void close() {
+		for (FutureTask<T> f : tasks) {
+			f.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.touna.dao.impl;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ *
+ *
+ * @Filename HbaseGetResult.java
+ *
+ * @Description 批量get中一个rowkey的结果：查询成功时为Result(行不存在时为空Result)，失败时为异常，互不影响
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseGetResult {
+
+	private final String	row;
+
+	private final Result	result;
+
+	private final Throwable	error;
+
+	public HbaseGetResult(String row, Result result, Throwable error) {
+		this.row = row;
+		this.result = result;
+		this.error = error;
+	}
+
+	/**
+	 * 查询的rowkey
+	 * @return
+	 */
+	public String getRow() {
+		return row;
+	}
+
+	/**
+	 * 查询结果，失败时为null
+	 * @return
+	 */
+	public Result getResult() {
+		return result;
+	}
+
+	/**
+	 * 失败原因，成功时为null
+	 * @return
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return null == error;
+	}
+
+	/**
+	 * 查询成功且行存在
+	 * @return
+	 */
+	public boolean exists() {
+		return null != result && !result.isEmpty();
+	}
+
+	/**
+	 * 结果由region副本返回，可能落后于主region，只有启用副本读的表会出现
+	 * @return
+	 */
+	public boolean isStale() {
+		return null != result && result.isStale();
+	}
+}
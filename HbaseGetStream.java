@@ -0,0 +1,177 @@
+package com.touna.dao.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ *
+ *
+ * @Filename HbaseGetStream.java
+ *
+ * @Description 大批量get的结果流：按rowkey的传入顺序逐个返回，每个rowkey单独成功或失败；
+ *              读到一个窗口时预先提交下一个窗口，取走的结果不再保留；关闭后未执行的块不再查询
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseGetStream implements Iterator<HbaseGetResult>, Closeable {
+
+	private final HbaseMultiGet			engine;
+
+	private final HbaseMultiGet.Call	call;
+
+	private final List<String>			rows;
+
+	/**
+	 * 每个窗口的rowkey数
+	 */
+	private final int					windowSize;
+
+	/**
+	 * 下一个返回的下标
+	 */
+	private int							position	= 0;
+
+	private Window						current;
+
+	/**
+	 * 预先提交的下一个窗口
+	 */
+	private Window						next;
+
+	HbaseGetStream(HbaseMultiGet engine, HbaseMultiGet.Call call, List<String> rows,
+					int windowSize) {
+		this.engine = engine;
+		this.call = call;
+		this.rows = rows;
+		this.windowSize = Math.max(1, windowSize);
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position < rows.size();
+	}
+
+	@Override
+	public HbaseGetResult next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (null == current || position >= current.end) {
+			current = null != next ? next : open(position);
+			next = null;
+		}
+		if (null == next && current.end < rows.size()) {
+			next = open(current.end);
+		}
+		Object o = current.await(position - current.start);
+		String row = rows.get(position++);
+		return o instanceof Result ? new HbaseGetResult(row, (Result) o, null)
+			: new HbaseGetResult(row, null, (Throwable) o);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * 不再执行排队中的块
+	 */
+	@Override
+	public void close() {
+		call.close();
+	}
+
+	/**
+	 * 提交一个窗口
+	 * @param start
+	 * @return
+	 */
+	private Window open(int start) {
+		Window w = new Window(start, Math.min(start + windowSize, rows.size()));
+		for (int i = 0; i < w.rows.length; i++) {
+			String row = rows.get(start + i);
+			w.rows[i] = null == row ? null : call.row(row);
+		}
+		try {
+			engine.dispatch(call, w);
+		} catch (IOException e) {
+
+			// 定位region失败，窗口内未完成的都失败
+			w.failRemaining(e);
+		}
+		return w;
+	}
+
+	/**
+	 * 一段连续的rowkey及其结果
+	 */
+	static class Window {
+
+		private final int		start;
+
+		private final int		end;
+
+		/**
+		 * 查询使用的rowkey
+		 */
+		final byte[][]			rows;
+
+		/**
+		 * Result或Throwable
+		 */
+		private final Object[]	results;
+
+		private final boolean[]	done;
+
+		Window(int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.rows = new byte[end - start][];
+			this.results = new Object[end - start];
+			this.done = new boolean[end - start];
+		}
+
+		synchronized void complete(int i, Object result) {
+			results[i] = result;
+			done[i] = true;
+			notifyAll();
+		}
+
+		synchronized void failRemaining(Throwable e) {
+			for (int i = 0; i < done.length; i++) {
+				if (!done[i]) {
+					results[i] = e;
+					done[i] = true;
+				}
+			}
+			notifyAll();
+		}
+
+		/**
+		 * 等待并取走结果
+		 * @param i
+		 * @return
+		 */
+		synchronized Object await(int i) {
+			while (!done[i]) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return new InterruptedIOException("等待批量get结果被中断");
+				}
+			}
+			Object o = results[i];
+			results[i] = null;
+			return o;
+		}
+	}
+}
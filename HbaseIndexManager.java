@@ -0,0 +1,384 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbaseIndexManager.java
+ *
+ * @Description cf列值的二级索引：索引表名为 表名_idx_列名，rowkey为 转义后的列值+0x00+数据rowkey，
+ *              写数据前先写索引，删除时删索引；更新不删旧索引，查询时回表校验列值，
+ *              不匹配的旧索引在查询时删除
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseIndexManager {
+
+	/**
+	 * 索引表列族
+	 */
+	public static final byte[]							INDEX_CF	= Bytes.toBytes("cf");
+
+	/**
+	 * 索引表列，值为空
+	 */
+	public static final byte[]							INDEX_COL	= Bytes.toBytes("r");
+
+	/**
+	 * 列值与数据rowkey的分隔符
+	 */
+	private static final byte							SEPARATOR	= 0;
+
+	/**
+	 * 列值中0x00、0x01的转义前缀：0x00转为0x01 0x01，0x01转为0x01 0x02，
+	 * 转义后的列值不含分隔符，一个值的前缀不会匹配到其他值的索引，且保持列值的字节序
+	 */
+	private static final byte							ESCAPE		= 1;
+
+	/**
+	 * 数据表列族
+	 */
+	private final byte[]								cf;
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection							connection;
+
+	/**
+	 * 数据表的加盐配置，索引中保存原rowkey
+	 */
+	private final HbaseSalting							salting;
+
+	/**
+	 * 表名 -> 建了索引的列
+	 */
+	private final ConcurrentMap<String, List<String>>	tables		= new ConcurrentHashMap<String, List<String>>();
+
+	/**
+	 * @param connection
+	 * @param salting
+	 * @param cf 数据表列族
+	 * @param config 表名:列|列，逗号分隔，如 order:userId|status,log:ip
+	 */
+	public HbaseIndexManager(Connection connection, HbaseSalting salting, String cf, String config) {
+		this.connection = connection;
+		this.salting = salting;
+		this.cf = Bytes.toBytes(cf);
+		for (String item : StringUtils.split(StringUtils.defaultString(config), ',')) {
+			String[] kv = StringUtils.split(item.trim(), ':');
+			if (kv.length == 2) {
+				for (String qualifier : StringUtils.split(kv[1], '|')) {
+					register(kv[0].trim(), qualifier.trim());
+				}
+			}
+		}
+	}
+
+	/**
+	 * 注册列的索引，之后的写入和删除会维护索引，已有数据需要rebuild
+	 * @param tableName
+	 * @param qualifier
+	 */
+	public void register(String tableName, String qualifier) {
+		List<String> qualifiers = tables.get(tableName);
+		if (null == qualifiers) {
+			tables.putIfAbsent(tableName, new CopyOnWriteArrayList<String>());
+			qualifiers = tables.get(tableName);
+		}
+		if (!qualifiers.contains(qualifier)) {
+			qualifiers.add(qualifier);
+		}
+	}
+
+	public boolean isIndexed(String tableName) {
+		return tables.containsKey(tableName);
+	}
+
+	public boolean isIndexed(String tableName, String qualifier) {
+		List<String> qualifiers = tables.get(tableName);
+		return null != qualifiers && qualifiers.contains(qualifier);
+	}
+
+	/**
+	 * 索引表名
+	 * @param tableName
+	 * @param qualifier
+	 * @return
+	 */
+	public static String indexTableName(String tableName, String qualifier) {
+		return tableName + "_idx_" + qualifier;
+	}
+
+	/**
+	 * 索引rowkey：转义后的列值+0x00+数据rowkey；
+	 * 不含0x00、0x01的列值不需要转义，与转义前的索引相同，含有的需要rebuild
+	 * @param value
+	 * @param row
+	 * @return
+	 */
+	public static byte[] indexRow(byte[] value, byte[] row) {
+		int escapes = 0;
+		for (byte b : value) {
+			if (b == SEPARATOR || b == ESCAPE) {
+				escapes++;
+			}
+		}
+		byte[] key = new byte[value.length + escapes + 1 + row.length];
+		int i = 0;
+		for (byte b : value) {
+			if (b == SEPARATOR || b == ESCAPE) {
+				key[i++] = ESCAPE;
+				key[i++] = (byte) (b + 1);
+			} else {
+				key[i++] = b;
+			}
+		}
+		key[i++] = SEPARATOR;
+		System.arraycopy(row, 0, key, i, row.length);
+		return key;
+	}
+
+	/**
+	 * 数据的索引put，按索引表分组；未建索引的表返回空
+	 * @param tableName
+	 * @param puts 原rowkey
+	 * @return
+	 */
+	public Map<String, List<Put>> indexPuts(String tableName, List<Put> puts) {
+		List<String> qualifiers = tables.get(tableName);
+		if (null == qualifiers || null == puts) {
+			return Collections.emptyMap();
+		}
+		Map<String, List<Put>> indexPuts = new LinkedHashMap<String, List<Put>>();
+		for (String qualifier : qualifiers) {
+			byte[] q = Bytes.toBytes(qualifier);
+			List<Put> list = new ArrayList<Put>();
+			for (Put put : puts) {
+				if (null == put || !put.has(cf, q)) {
+					continue;
+				}
+				for (Cell cell : put.get(cf, q)) {
+					Put ip = new Put(indexRow(cloneValue(cell), put.getRow()));
+					ip.addColumn(INDEX_CF, INDEX_COL, cell.getTimestamp(), new byte[0]);
+					list.add(ip);
+				}
+			}
+			if (!list.isEmpty()) {
+				indexPuts.put(indexTableName(tableName, qualifier), list);
+			}
+		}
+		return indexPuts;
+	}
+
+	/**
+	 * 同步写索引，在写数据之前调用：数据写失败只会留下查询时被清理的多余索引
+	 * @param tableName
+	 * @param puts 原rowkey
+	 * @throws IOException
+	 */
+	public void index(String tableName, List<Put> puts) throws IOException {
+		for (Map.Entry<String, List<Put>> entry : indexPuts(tableName, puts).entrySet()) {
+			Table table = connection.getTable(TableName.valueOf(entry.getKey()));
+			try {
+				table.put(entry.getValue());
+			} finally {
+				HbaseDaoImpl.closeConnect(table);
+			}
+		}
+	}
+
+	/**
+	 * 删除数据前调用：读出行的索引列当前值，删除对应的索引
+	 * @param tableName
+	 * @param rows 原rowkey
+	 * @throws IOException
+	 */
+	public void unindex(String tableName, Collection<String> rows) throws IOException {
+		for (Map.Entry<String, List<Delete>> entry : indexDeletes(tableName, rows).entrySet()) {
+			deleteIndex(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * 读出行的索引列当前值，生成对应索引的delete，按索引表分组；未建索引的表返回空
+	 * @param tableName
+	 * @param rows 原rowkey
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<String, List<Delete>> indexDeletes(String tableName, Collection<String> rows)
+																							throws IOException {
+		List<String> qualifiers = tables.get(tableName);
+		if (null == qualifiers || null == rows || rows.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		List<Get> gets = new ArrayList<Get>(rows.size());
+		for (String row : rows) {
+			Get get = new Get(salting.saltRow(tableName, Bytes.toBytes(row)));
+			for (String qualifier : qualifiers) {
+				get.addColumn(cf, Bytes.toBytes(qualifier));
+			}
+			gets.add(get);
+		}
+		Result[] results;
+		Table table = connection.getTable(TableName.valueOf(tableName));
+		try {
+			results = table.get(gets);
+		} finally {
+			HbaseDaoImpl.closeConnect(table);
+		}
+
+		Map<String, List<Delete>> indexDeletes = new LinkedHashMap<String, List<Delete>>();
+		for (String qualifier : qualifiers) {
+			byte[] q = Bytes.toBytes(qualifier);
+			List<Delete> deletes = new ArrayList<Delete>();
+			int i = 0;
+			for (String row : rows) {
+				Result result = results[i++];
+				byte[] value = null == result ? null : result.getValue(cf, q);
+				if (null != value) {
+					deletes.add(new Delete(indexRow(value, Bytes.toBytes(row))));
+				}
+			}
+			if (!deletes.isEmpty()) {
+				indexDeletes.put(indexTableName(tableName, qualifier), deletes);
+			}
+		}
+		return indexDeletes;
+	}
+
+	/**
+	 * 按列值查索引，返回数据rowkey及索引的时间戳，按rowkey排序
+	 * @param tableName
+	 * @param qualifier
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<String, Long> lookup(String tableName, String qualifier, byte[] value)
+																						throws IOException {
+		byte[] prefix = indexRow(value, new byte[0]);
+		byte[] stop = prefix.clone();
+		stop[stop.length - 1] = SEPARATOR + 1;
+		Scan scan = new Scan(prefix, stop);
+		scan.addColumn(INDEX_CF, INDEX_COL);
+		scan.setCaching(1000);
+
+		Map<String, Long> rows = new LinkedHashMap<String, Long>();
+		Table table = connection.getTable(TableName.valueOf(indexTableName(tableName, qualifier)));
+		ResultScanner scanner = null;
+		try {
+			scanner = table.getScanner(scan);
+			for (Result result : scanner) {
+				byte[] key = result.getRow();
+				rows.put(Bytes.toString(key, prefix.length, key.length - prefix.length), result
+					.rawCells()[0].getTimestamp());
+			}
+		} finally {
+			HbaseDaoImpl.closeConnect(scanner);
+			HbaseDaoImpl.closeConnect(table);
+		}
+		return rows;
+	}
+
+	/**
+	 * 删除查询时发现的旧索引，只删查到的那个版本，不影响之后重新写入的同值索引
+	 * @param tableName
+	 * @param qualifier
+	 * @param value
+	 * @param staleRows 数据rowkey -> 索引时间戳
+	 * @throws IOException
+	 */
+	public void repair(String tableName, String qualifier, byte[] value, Map<String, Long> staleRows)
+																										throws IOException {
+		List<Delete> deletes = new ArrayList<Delete>(staleRows.size());
+		for (Map.Entry<String, Long> stale : staleRows.entrySet()) {
+			Delete d = new Delete(indexRow(value, Bytes.toBytes(stale.getKey())));
+			d.addColumn(INDEX_CF, INDEX_COL, stale.getValue());
+			deletes.add(d);
+		}
+		deleteIndex(indexTableName(tableName, qualifier), deletes);
+	}
+
+	/**
+	 * 扫描数据表重建列的索引，不缓存读到的block
+	 * @param tableName
+	 * @param qualifier
+	 * @return 写入的索引数
+	 * @throws IOException
+	 */
+	public long rebuild(String tableName, String qualifier) throws IOException {
+		byte[] q = Bytes.toBytes(qualifier);
+		Scan scan = new Scan();
+		scan.addColumn(cf, q);
+		scan.setCacheBlocks(false);
+		scan.setCaching(1000);
+
+		long count = 0;
+		boolean salted = salting.isSalted(tableName);
+		Table table = connection.getTable(TableName.valueOf(tableName));
+		ResultScanner scanner = null;
+		BufferedMutator mutator = null;
+		try {
+			mutator = connection.getBufferedMutator(new BufferedMutatorParams(TableName
+				.valueOf(indexTableName(tableName, qualifier))));
+			scanner = table.getScanner(scan);
+			for (Result result : scanner) {
+				byte[] row = salted ? HbaseSalting.unsalt(result.getRow()) : result.getRow();
+				Cell cell = result.getColumnLatestCell(cf, q);
+				Put ip = new Put(indexRow(cloneValue(cell), row));
+				ip.addColumn(INDEX_CF, INDEX_COL, cell.getTimestamp(), new byte[0]);
+				mutator.mutate(ip);
+				count++;
+			}
+			mutator.flush();
+		} finally {
+			HbaseDaoImpl.closeConnect(scanner);
+			HbaseDaoImpl.closeConnect(table);
+			if (null != mutator) {
+				mutator.close();
+			}
+		}
+		return count;
+	}
+
+	private void deleteIndex(String indexTableName, List<Delete> deletes) throws IOException {
+		Table table = connection.getTable(TableName.valueOf(indexTableName));
+		try {
+			table.delete(deletes);
+		} finally {
+			HbaseDaoImpl.closeConnect(table);
+		}
+	}
+
+	private static byte[] cloneValue(Cell cell) {
+		return Bytes.copy(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+	}
+}
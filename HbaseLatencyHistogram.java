@@ -0,0 +1,123 @@
+package com.touna.dao.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ *
+ * @Filename HbaseLatencyHistogram.java
+ *
+ * @Description 无锁延迟直方图，单位微秒。每个2的幂区间再等分32个桶，相对误差约3%，
+ *              记录时只做原子自增，不分配对象
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseLatencyHistogram {
+
+	/**
+	 * 每个2的幂区间的桶数的位数
+	 */
+	private static final int		SUB_BITS	= 5;
+
+	private static final int		SUB_COUNT	= 1 << SUB_BITS;
+
+	/**
+	 * 最大记录值约2^40微秒，超过按最大值记录
+	 */
+	private static final long		MAX_VALUE	= (1L << 40) - 1;
+
+	private static final int		BUCKETS		= index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray	counts		= new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong		count		= new AtomicLong();
+
+	private final AtomicLong		sum			= new AtomicLong();
+
+	private final AtomicLong		max			= new AtomicLong();
+
+	/**
+	 * 记录一次延迟
+	 * @param micros
+	 */
+	public void record(long micros) {
+		long v = micros < 0 ? 0 : Math.min(micros, MAX_VALUE);
+		counts.incrementAndGet(index(v));
+		count.incrementAndGet();
+		sum.addAndGet(v);
+		long m;
+		while (v > (m = max.get())) {
+			if (max.compareAndSet(m, v)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : (double) sum.get() / c;
+	}
+
+	/**
+	 * 分位数
+	 * @param quantile 如0.99
+	 * @return 微秒
+	 */
+	public long getQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(valueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * 值所在桶下标
+	 * @param v
+	 * @return
+	 */
+	private static int index(long v) {
+		if (v < SUB_COUNT) {
+			return (int) v;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return SUB_COUNT + (shift << SUB_BITS) + (int) ((v >>> shift) - SUB_COUNT);
+	}
+
+	/**
+	 * 桶的代表值(桶内中点)
+	 * @param index
+	 * @return
+	 */
+	private static long valueOf(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_COUNT) >>> SUB_BITS;
+		long offset = (index - SUB_COUNT) & (SUB_COUNT - 1);
+		return ((SUB_COUNT + offset) << shift) + ((1L << shift) >>> 1);
+	}
+}
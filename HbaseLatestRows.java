@@ -0,0 +1,327 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.WhileMatchFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbaseLatestRows.java
+ *
+ * @Description 批量查询每个前缀(或rowkey范围)下rowkey最大的N行：每个前缀一个反向small scan，
+ *              服务端用PageFilter限制行数、越过范围下界即结束，各前缀最多同时执行concurrency个；
+ *              加盐表每个桶一个scan，结果按原rowkey倒序归并
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseLatestRows {
+
+	private static final Logger	logger		= LoggerFactory.getLogger(HbaseLatestRows.class);
+
+	private static final byte[]	EMPTY		= new byte[0];
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection	connection;
+
+	/**
+	 * 加盐表每个桶一个scan
+	 */
+	private final HbaseSalting	salting;
+
+	/**
+	 * 执行scan的线程池
+	 */
+	private final Executor		executor;
+
+	/**
+	 * 每次调用同时执行的前缀数
+	 */
+	private final int			concurrency;
+
+	private final byte[]		family		= Bytes.toBytes("cf");
+
+	public HbaseLatestRows(Connection connection, HbaseSalting salting, Executor executor,
+							int concurrency) {
+		this.connection = connection;
+		this.salting = salting;
+		this.executor = executor;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * 每个前缀下rowkey最大的limit行
+	 * @param tableName
+	 * @param prefixes 原rowkey前缀，重复的只查一次
+	 * @param limit
+	 * @param columns cf下的列，为空查询全部列
+	 * @param stats
+	 * @return 前缀 -> 按rowkey倒序的行，按传入顺序；查询失败的前缀不在map中
+	 * @throws IOException
+	 */
+	public Map<String, List<Result>> byPrefix(String tableName, List<String> prefixes,
+												int limit, List<String> columns,
+												HbaseOperationStats stats) throws IOException {
+		Map<String, byte[][]> bounds = new LinkedHashMap<String, byte[][]>();
+		for (String prefix : prefixes) {
+			byte[] lower = Bytes.toBytes(prefix);
+			bounds.put(prefix, new byte[][] { lower, next(lower) });
+		}
+		return run(tableName, bounds, limit, columns, stats);
+	}
+
+	/**
+	 * 每个范围内rowkey最大的limit行
+	 * @param tableName
+	 * @param ranges 名称 -> 原rowkey范围
+	 * @param limit
+	 * @param columns cf下的列，为空查询全部列
+	 * @param stats
+	 * @return 名称 -> 按rowkey倒序的行，按传入顺序；查询失败的范围不在map中
+	 * @throws IOException
+	 */
+	public Map<String, List<Result>> byRange(String tableName, Map<String, HbaseRowRange> ranges,
+												int limit, List<String> columns,
+												HbaseOperationStats stats) throws IOException {
+		Map<String, byte[][]> bounds = new LinkedHashMap<String, byte[][]>();
+		for (Map.Entry<String, HbaseRowRange> e : ranges.entrySet()) {
+			HbaseRowRange range = e.getValue();
+			bounds.put(e.getKey(), new byte[][] { toBytes(range.getStart()),
+					toBytes(range.getStop()) });
+		}
+		return run(tableName, bounds, limit, columns, stats);
+	}
+
+	/**
+	 * 并发执行，同时最多concurrency个，每完成一个提交下一个
+	 * @param tableName
+	 * @param bounds 名称 -> {下界(包含), 上界(不包含)}，空数组为不限
+	 * @param limit
+	 * @param columns
+	 * @param stats
+	 * @return
+	 * @throws IOException
+	 */
+	private Map<String, List<Result>> run(final String tableName, Map<String, byte[][]> bounds,
+											final int limit, List<String> columns,
+											HbaseOperationStats stats) throws IOException {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit需大于0：" + limit);
+		}
+		final List<byte[]> cols = new ArrayList<byte[]>();
+		if (null != columns) {
+			for (String col : columns) {
+				cols.add(Bytes.toBytes(col));
+			}
+		}
+		final List<String> keys = new ArrayList<String>(bounds.keySet());
+		final List<byte[][]> values = new ArrayList<byte[][]>(bounds.values());
+		final List<List<Result>> results = new ArrayList<List<Result>>(Collections
+			.<List<Result>> nCopies(keys.size(), null));
+		ExecutorCompletionService<Void> ecs = new ExecutorCompletionService<Void>(executor);
+		int next = 0;
+		int running = 0;
+		int failed = 0;
+		Throwable firstError = null;
+		try {
+			while (next < keys.size() || running > 0) {
+				while (next < keys.size() && running < concurrency) {
+					final int i = next++;
+					ecs.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							byte[][] b = values.get(i);
+							results.set(i, latest(tableName, b[0], b[1], limit, cols));
+							return null;
+						}
+					});
+					running++;
+				}
+				try {
+					ecs.take().get();
+				} catch (ExecutionException e) {
+					failed++;
+					firstError = null == firstError ? e.getCause() : firstError;
+				}
+				running--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("查询最新数据被中断");
+		} catch (RejectedExecutionException e) {
+			throw new IOException("查询线程池已关闭", e);
+		}
+		if (failed > 0) {
+			stats.error();
+			logger.error("表:{} 查询最新数据失败{}个前缀/范围！", tableName, failed, firstError);
+		}
+		Map<String, List<Result>> out = new LinkedHashMap<String, List<Result>>();
+		for (int i = 0; i < keys.size(); i++) {
+			if (null != results.get(i)) {
+				out.put(keys.get(i), results.get(i));
+				stats.read(results.get(i));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * 一个范围内rowkey最大的limit行，加盐表每个桶扫一次后倒序归并
+	 * @param tableName
+	 * @param lower 原rowkey下界，包含
+	 * @param upper 原rowkey上界，不包含
+	 * @param limit
+	 * @param cols
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Result> latest(String tableName, byte[] lower, byte[] upper, int limit,
+								List<byte[]> cols) throws IOException {
+		Table table = connection.getTable(TableName.valueOf(tableName));
+		try {
+			int buckets = salting.buckets(tableName);
+			if (buckets == 0) {
+				return scan(table, newScan(lower, upper, limit, cols), limit);
+			}
+			List<Result> merged = new ArrayList<Result>();
+			for (int b = 0; b < buckets; b++) {
+				byte bucket = (byte) b;
+				byte[] bucketUpper;
+				if (upper.length != 0) {
+					bucketUpper = HbaseSalting.prefix(bucket, upper);
+				} else if (b == HbaseSalting.MAX_BUCKETS - 1) {
+					bucketUpper = EMPTY;
+				} else {
+					bucketUpper = new byte[] { (byte) (b + 1) };
+				}
+				for (Result r : scan(table, newScan(HbaseSalting.prefix(bucket, lower),
+					bucketUpper, limit, cols), limit)) {
+					merged.add(HbaseSalting.unsalt(r));
+				}
+			}
+			
+			// 各桶按原rowkey倒序归并
+			Collections.sort(merged, new Comparator<Result>() {
+				@Override
+				public int compare(Result a, Result b) {
+					return Bytes.compareTo(b.getRow(), a.getRow());
+				}
+			});
+			return merged.size() > limit ? new ArrayList<Result>(merged.subList(0, limit))
+				: merged;
+		} finally {
+			HbaseDaoImpl.closeConnect(table);
+		}
+	}
+
+	private static List<Result> scan(Table table, Scan scan, int limit) throws IOException {
+		List<Result> list = new ArrayList<Result>();
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			for (Result r = scanner.next(); null != r && list.size() < limit; r = scanner.next()) {
+				list.add(r);
+			}
+		} finally {
+			HbaseDaoImpl.closeConnect(scanner);
+		}
+		return list;
+	}
+
+	/**
+	 * 从上界往下的反向scan：上界行本身由RowFilter排除，
+	 * 越过下界后WhileMatchFilter结束本region的扫描，stopRow避免客户端继续打开前面的region
+	 * @param lower 实际rowkey下界，包含，空为不限
+	 * @param upper 实际rowkey上界，不包含，空为不限
+	 * @param limit
+	 * @param cols
+	 * @return
+	 */
+	private Scan newScan(byte[] lower, byte[] upper, int limit, List<byte[]> cols) {
+		Scan scan = new Scan();
+		scan.setReversed(true);
+		scan.setSmall(true);
+		scan.setCaching(limit);
+		FilterList fl = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+		if (upper.length != 0) {
+			scan.setStartRow(upper);
+			fl.addFilter(new RowFilter(CompareOp.LESS, new BinaryComparator(upper)));
+		}
+		if (lower.length != 0) {
+			scan.setStopRow(below(lower));
+			fl.addFilter(new WhileMatchFilter(new RowFilter(CompareOp.GREATER_OR_EQUAL,
+				new BinaryComparator(lower))));
+		}
+		fl.addFilter(new PageFilter(limit));
+		scan.setFilter(fl);
+		for (byte[] col : cols) {
+			scan.addColumn(family, col);
+		}
+		return scan;
+	}
+
+	/**
+	 * 前缀的上界：去掉末尾的0xFF后最后一个字节加1，全是0xFF时为空(到表尾)
+	 * @param prefix
+	 * @return
+	 */
+	static byte[] next(byte[] prefix) {
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte) 0xFF) {
+				byte[] next = Arrays.copyOf(prefix, i + 1);
+				next[i]++;
+				return next;
+			}
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * 反向scan的stopRow(不包含)：小于row的行都不会被扫描到；
+	 * 末字节为0时去掉末字节正好是row的前一个rowkey，否则末字节减1，中间的行由filter排除
+	 * @param row 非空
+	 * @return
+	 */
+	static byte[] below(byte[] row) {
+		byte last = row[row.length - 1];
+		if (last == 0) {
+			return Arrays.copyOf(row, row.length - 1);
+		}
+		byte[] below = Arrays.copyOf(row, row.length);
+		below[below.length - 1] = (byte) (last - 1);
+		return below;
+	}
+
+	private static byte[] toBytes(String row) {
+		return null == row ? EMPTY : Bytes.toBytes(row);
+	}
+}
@@ -0,0 +1,185 @@
+package com.touna.dao.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbaseMetrics.java
+ *
+ * @Description HbaseDao指标注册表：按表+操作统计延迟分位数、读写行数字节数、错误次数和写入失败行数，
+ *              通过jmx(com.touna.hbase:type=HbaseDao)暴露，并可注册定时上报的reporter
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseMetrics {
+
+	/**
+	 * 日志
+	 */
+	private static final Logger										logger	= LoggerFactory
+																				.getLogger(HbaseMetrics.class);
+
+	/**
+	 * 统计的操作
+	 */
+	public enum Op {
+		ADD_DATA("addData"),
+		ADD_DATA_BATCH("addDataBatch"),
+		ADD_DATA_BATCH_ASYN("addDataBatchAsyn"),
+		AGGREGATE("aggregate"),
+		ASYN_FLUSH("asynFlush"),
+		BULK_LOAD("bulkLoad"),
+		COALESCED_PUT("coalescedPut"),
+		DELETE("delete"),
+		GET_ROW("getRow"),
+		GET_ROWS("getRows"),
+		INDEX_LOOKUP("getRowsByIndex"),
+		MULTI_GET("multiGet"),
+		SCAN("getRowsByStartAndStop"),
+		SCAN_FILTER("getRowsByFilters"),
+		SCAN_PARALLEL("getRowsByStartAndStopParallel"),
+		SCAN_STREAM("streamScan"),
+		SPOOL_REPLAY("spoolReplay"),
+		PAGE("scanResultByPageModel"),
+		PAGE_ANY("scanResultByPageModelAnyPage"),
+		SELECT_FIRST_ROW("selectFirstResultRow"),
+		SELECT_PAGE_LAST_ROW("selectPageLastRow"),
+		GET_LAST_DATA("getLastDataByRowkeyCondition"),
+		GET_LATEST("getLastDataByPrefixes");
+
+		private final String	operation;
+
+		Op(String operation) {
+			this.operation = operation;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+	}
+
+	/**
+	 * 表名 -> 按Op.ordinal()排列的统计
+	 */
+	private static final ConcurrentMap<String, HbaseOperationStats[]>	tables	= new ConcurrentHashMap<String, HbaseOperationStats[]>();
+
+	/**
+	 * reporter定时线程
+	 */
+	private static ScheduledExecutorService								reporterExecutor;
+
+	private HbaseMetrics() {
+	}
+
+	/**
+	 * 获取表+操作的统计，表第一次出现时创建并注册jmx，之后只有一次map查找
+	 * @param tableName
+	 * @param op
+	 * @return
+	 */
+	public static HbaseOperationStats stats(String tableName, Op op) {
+		String key = null == tableName ? "-" : tableName;
+		HbaseOperationStats[] ops = tables.get(key);
+		if (null == ops) {
+			ops = register(key);
+		}
+		return ops[op.ordinal()];
+	}
+
+	/**
+	 * 有过调用的统计
+	 * @return
+	 */
+	public static Collection<HbaseOperationStats> all() {
+		List<HbaseOperationStats> list = new ArrayList<HbaseOperationStats>();
+		for (HbaseOperationStats[] ops : tables.values()) {
+			for (HbaseOperationStats stats : ops) {
+				if (stats.getCount() > 0 || stats.getErrors() > 0) {
+					list.add(stats);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * 注册定时上报
+	 * @param reporter
+	 * @param periodMs
+	 */
+	public static synchronized void addReporter(final HbaseMetricsReporter reporter, long periodMs) {
+		if (null == reporterExecutor) {
+			reporterExecutor = Executors.newSingleThreadScheduledExecutor(new HbaseThreadFactory(
+				"hbase-metrics-report"));
+		}
+		reporterExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reporter.report(all());
+				} catch (Exception e) {
+					logger.error("hbase指标上报失败！", e);
+				}
+			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 创建表的所有操作统计并注册jmx
+	 * @param tableName
+	 * @return
+	 */
+	private static synchronized HbaseOperationStats[] register(String tableName) {
+		HbaseOperationStats[] ops = tables.get(tableName);
+		if (null != ops) {
+			return ops;
+		}
+		ops = new HbaseOperationStats[Op.values().length];
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Op op : Op.values()) {
+			HbaseOperationStats stats = new HbaseOperationStats(tableName, op.getOperation());
+			ops[op.ordinal()] = stats;
+			try {
+				ObjectName name = new ObjectName("com.touna.hbase:type=HbaseDao,table="
+													+ ObjectName.quote(tableName) + ",operation="
+													+ op.getOperation());
+				if (!server.isRegistered(name)) {
+					server.registerMBean(stats, name);
+				}
+			} catch (Exception e) {
+				logger.error("注册hbase指标jmx失败！", e);
+			}
+		}
+		tables.put(tableName, ops);
+		return ops;
+	}
+
+	/**
+	 * 输出到日志的reporter
+	 */
+	public static class LogReporter implements HbaseMetricsReporter {
+
+		@Override
+		public void report(Collection<HbaseOperationStats> stats) {
+			for (HbaseOperationStats s : stats) {
+				logger.info("hbase指标: {}", s);
+			}
+		}
+	}
+}
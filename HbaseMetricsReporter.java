@@ -0,0 +1,22 @@
+package com.touna.dao.impl;
+
+import java.util.Collection;
+
+/**
+ *
+ *
+ * @Filename HbaseMetricsReporter.java
+ *
+ * @Description 指标上报接口，由HbaseMetrics定时调用，可对接日志、监控系统等
+ *
+ * @Version 1.0
+ *
+ */
+public interface HbaseMetricsReporter {
+
+	/**
+	 * 上报当前所有表+操作的统计(自启动以来累计)
+	 * @param stats
+	 */
+	void report(Collection<HbaseOperationStats> stats);
+}
@@ -0,0 +1,291 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbaseMultiGet.java
+ *
+ * @Description 大批量get：rowkey按所在regionserver分组后切成固定大小的块，
+ *              每次调用最多同时执行concurrency个块，每个块单独成功或失败，
+ *              结果通过HbaseGetStream按rowkey的传入顺序返回，只在内存中保留两个窗口的结果
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseMultiGet {
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection		connection;
+
+	/**
+	 * 加盐表按原rowkey查询
+	 */
+	private final HbaseSalting		salting;
+
+	/**
+	 * 副本读的表使用TIMELINE一致性
+	 */
+	private final HbaseReplicaReads	replicas;
+
+	/**
+	 * 执行块的线程池
+	 */
+	private final Executor			executor;
+
+	/**
+	 * 每块的get数
+	 */
+	private final int				chunkSize;
+
+	/**
+	 * 每次调用同时执行的块数
+	 */
+	private final int				concurrency;
+
+	public HbaseMultiGet(Connection connection, HbaseSalting salting, HbaseReplicaReads replicas,
+							Executor executor, int chunkSize, int concurrency) {
+		this.connection = connection;
+		this.salting = salting;
+		this.replicas = replicas;
+		this.executor = executor;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * 按传入顺序返回每个rowkey的结果，用完需要close
+	 * @param tableName
+	 * @param rows 可以包含null，对应的结果为失败
+	 * @param columns cf下的列，为空查询全部列
+	 * @return
+	 */
+	public HbaseGetStream stream(String tableName, List<String> rows, List<String> columns) {
+
+		// 一个窗口刚好让所有并发各执行两轮
+		return new HbaseGetStream(this, new Call(tableName, columns), rows, chunkSize
+																			* concurrency * 2);
+	}
+
+	/**
+	 * 提交一个窗口的查询：按regionserver分组切块后排队执行
+	 * @param call 本次调用
+	 * @param window
+	 * @throws IOException
+	 */
+	void dispatch(Call call, HbaseGetStream.Window window) throws IOException {
+		Map<ServerName, List<Integer>> byServer = new LinkedHashMap<ServerName, List<Integer>>();
+		RegionLocator locator = connection.getRegionLocator(call.tableName);
+		try {
+			for (int i = 0; i < window.rows.length; i++) {
+				if (null == window.rows[i]) {
+					window.complete(i, new IllegalArgumentException("rowkey为空"));
+					continue;
+				}
+
+				// 使用客户端缓存的region位置，region移动后由get自己重试
+				ServerName server = locator.getRegionLocation(window.rows[i]).getServerName();
+				List<Integer> indexes = byServer.get(server);
+				if (null == indexes) {
+					indexes = new ArrayList<Integer>();
+					byServer.put(server, indexes);
+				}
+				indexes.add(i);
+			}
+		} finally {
+			locator.close();
+		}
+		for (List<Integer> indexes : byServer.values()) {
+			for (int from = 0; from < indexes.size(); from += chunkSize) {
+				final List<Integer> chunk = indexes.subList(from, Math.min(from + chunkSize,
+					indexes.size()));
+				call.submit(window, chunk);
+			}
+		}
+	}
+
+	/**
+	 * 执行一块：每个get的结果或异常单独记录
+	 * @param call
+	 * @param window
+	 * @param chunk 窗口内的下标
+	 */
+	void execute(Call call, HbaseGetStream.Window window, List<Integer> chunk) {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(call.tableName.getNameAsString(),
+			HbaseMetrics.Op.MULTI_GET);
+		String name = call.tableName.getNameAsString();
+		List<Get> gets = new ArrayList<Get>(chunk.size());
+		for (int i : chunk) {
+			Get get = new Get(window.rows[i]);
+			if (null != call.columns) {
+				for (byte[] col : call.columns) {
+					get.addColumn(call.family, col);
+				}
+			}
+			gets.add(replicas.apply(name, get));
+		}
+		Object[] out = new Object[gets.size()];
+		Table table = null;
+		try {
+			table = connection.getTable(call.tableName);
+			table.batch(gets, out);
+		} catch (RetriesExhaustedWithDetailsException e) {
+
+			// 失败的get在out中是异常，其余是结果
+			HbaseDaoImpl.recordError(stats, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fill(out, new InterruptedIOException("批量get被中断"));
+			stats.error();
+		} catch (IOException e) {
+			fill(out, e);
+			stats.error();
+		} finally {
+			HbaseDaoImpl.closeConnect(table);
+		}
+		for (int j = 0; j < out.length; j++) {
+			Object o = out[j];
+			if (o instanceof Result) {
+				Result r = salting.unsalt(name, (Result) o);
+				stats.read(r);
+				HbaseReplicaReads.recordStale(stats, r);
+				window.complete(chunk.get(j), r);
+			} else {
+				window.complete(chunk.get(j), o instanceof Throwable ? (Throwable) o
+					: new IOException("没有返回结果"));
+			}
+		}
+		stats.record(startNanos);
+	}
+
+	private static void fill(Object[] out, Throwable e) {
+		for (int j = 0; j < out.length; j++) {
+			if (!(out[j] instanceof Result)) {
+				out[j] = e;
+			}
+		}
+	}
+
+	/**
+	 * 一次调用：块按提交顺序排队，最多同时执行concurrency个
+	 */
+	class Call {
+
+		private final TableName									tableName;
+
+		private final byte[]									family	= Bytes.toBytes("cf");
+
+		private final List<byte[]>								columns;
+
+		private final ConcurrentLinkedQueue<Runnable>			queue	= new ConcurrentLinkedQueue<Runnable>();
+
+		private final AtomicInteger								running	= new AtomicInteger(0);
+
+		private volatile boolean								closed	= false;
+
+		Call(String tableName, List<String> columns) {
+			this.tableName = TableName.valueOf(tableName);
+			if (null == columns || columns.isEmpty()) {
+				this.columns = null;
+			} else {
+				this.columns = new ArrayList<byte[]>(columns.size());
+				for (String col : columns) {
+					this.columns.add(Bytes.toBytes(col));
+				}
+			}
+		}
+
+		/**
+		 * 查询使用的rowkey，加盐表加上桶号
+		 * @param row
+		 * @return
+		 */
+		byte[] row(String row) {
+			return salting.saltRow(tableName.getNameAsString(), Bytes.toBytes(row));
+		}
+
+		void submit(final HbaseGetStream.Window window, final List<Integer> chunk) {
+			queue.offer(new Runnable() {
+				@Override
+				public void run() {
+					if (closed) {
+						for (int i : chunk) {
+							window.complete(i, new IOException("批量get已关闭"));
+						}
+						return;
+					}
+					execute(Call.this, window, chunk);
+				}
+			});
+			pump();
+		}
+
+		/**
+		 * 未达到并发上限时从队列取块执行
+		 */
+		private void pump() {
+			while (!queue.isEmpty()) {
+				int n = running.get();
+				if (n >= concurrency) {
+					return;
+				}
+				if (!running.compareAndSet(n, n + 1)) {
+					continue;
+				}
+				final Runnable task = queue.poll();
+				if (null == task) {
+					running.decrementAndGet();
+					continue;
+				}
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								task.run();
+							} finally {
+								running.decrementAndGet();
+								pump();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					running.decrementAndGet();
+					closed = true;
+					task.run();
+				}
+			}
+		}
+
+		void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,750 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbaseMutatorManager.java
+ *
+ * @Description 按表共享的BufferedMutator，调用方只负责入队，由后台线程按大小或时间间隔flush，
+ *              每次入队返回一个future，数据写入hbase后完成；
+ *              待写入数据(含正在flush的)总量有上限，满时按OverflowPolicy阻塞、立即失败或丢弃最早的数据，
+ *              每批大小和同时flush的表数按flush耗时和失败行数自适应(AIMD)
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseMutatorManager {
+
+	/**
+	 * 待写入数据已满时生产者的处理方式
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * 阻塞等待flush腾出空间，超时后失败
+		 */
+		BLOCK,
+
+		/**
+		 * 立即失败
+		 */
+		FAIL_FAST,
+
+		/**
+		 * 丢弃本表最早入队的数据腾出空间，被丢弃的数据future异常完成
+		 */
+		SHED
+	}
+
+	/**
+	 * 日志
+	 */
+	private static final Logger							logger		= LoggerFactory
+																		.getLogger(HbaseMutatorManager.class);
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection							connection;
+
+	/**
+	 * 每批最大大小(字节)，也是BufferedMutator的writeBufferSize
+	 */
+	private final long									flushSize;
+
+	/**
+	 * 待写入数据(含正在flush的)总量上限(字节)
+	 */
+	private final long									maxPendingBytes;
+
+	/**
+	 * 待写入数据已满时的处理方式
+	 */
+	private final OverflowPolicy						overflowPolicy;
+
+	/**
+	 * BLOCK时最多等待的时间(毫秒)
+	 */
+	private final long									blockTimeoutMs;
+
+	/**
+	 * 一批flush耗时超过该值(毫秒)视为regionserver变慢
+	 */
+	private final long									targetLatencyMs;
+
+	/**
+	 * 自适应的每批大小(字节)，达到该大小时立即flush
+	 */
+	private final HbaseAimdLimit						batchBytes;
+
+	/**
+	 * 自适应的同时flush的表数
+	 */
+	private final HbaseAimdLimit						concurrency;
+
+	/**
+	 * 待写入数据(含正在flush的)总量
+	 */
+	private final AtomicLong							totalPending	= new AtomicLong(0);
+
+	/**
+	 * 等待空间的生产者在此等待，flush释放空间后唤醒
+	 */
+	private final Object								capacity		= new Object();
+
+	/**
+	 * 正在flush的表数，由concurrency限制
+	 */
+	private int											flushing		= 0;
+
+	/**
+	 * 写入失败的数据转存到本地spool由后台重放，为空表示不启用
+	 */
+	private volatile HbaseSpool							spool;
+
+	/**
+	 * spool中有未重放的数据时，新写入和已入队未写入的数据也进spool，保证同一rowkey按顺序写入
+	 */
+	private volatile boolean							deferToSpool	= true;
+
+	/**
+	 * 定时flush间隔(毫秒)
+	 */
+	private final long									flushIntervalMs;
+
+	/**
+	 * 每张表一个mutator
+	 */
+	private final ConcurrentMap<String, TableMutator>	mutators	= new ConcurrentHashMap<String, TableMutator>();
+
+	/**
+	 * flush线程
+	 */
+	private final ScheduledExecutorService				flusher;
+
+	/**
+	 * 是否已关闭
+	 */
+	private volatile boolean							closed		= false;
+
+	/**
+	 * @param connection
+	 * @param flushSize 待写入数据达到该大小(字节)时flush
+	 * @param flushIntervalMs 定时flush间隔(毫秒)
+	 * @param flushThreads flush线程数
+	 */
+	public HbaseMutatorManager(Connection connection, long flushSize, long flushIntervalMs,
+								int flushThreads) {
+		this(connection, flushSize, flushIntervalMs, flushThreads, flushSize * 16,
+			OverflowPolicy.BLOCK, 10000, 1000);
+	}
+
+	/**
+	 * @param connection
+	 * @param flushSize 每批最大大小(字节)
+	 * @param flushIntervalMs 定时flush间隔(毫秒)
+	 * @param flushThreads flush线程数，也是同时flush的表数上限
+	 * @param maxPendingBytes 待写入数据(含正在flush的)总量上限(字节)
+	 * @param overflowPolicy 待写入数据已满时的处理方式
+	 * @param blockTimeoutMs BLOCK时最多等待的时间(毫秒)
+	 * @param targetLatencyMs 一批flush耗时超过该值(毫秒)时缩小批次和并发
+	 */
+	public HbaseMutatorManager(Connection connection, long flushSize, long flushIntervalMs,
+								int flushThreads, long maxPendingBytes,
+								OverflowPolicy overflowPolicy, long blockTimeoutMs,
+								long targetLatencyMs) {
+		this.connection = connection;
+		this.flushSize = flushSize;
+		this.flushIntervalMs = flushIntervalMs;
+		this.maxPendingBytes = maxPendingBytes;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutMs = blockTimeoutMs;
+		this.targetLatencyMs = targetLatencyMs;
+		this.batchBytes = new HbaseAimdLimit(Math.max(1, flushSize / 32), Math.max(1, flushSize),
+			Math.max(1, flushSize / 16), 0.5);
+		this.concurrency = new HbaseAimdLimit(1, Math.max(1, flushThreads), 1, 0.5);
+		this.flusher = Executors.newScheduledThreadPool(flushThreads, new HbaseThreadFactory(
+			"hbase-mutator-flush"));
+		this.flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushAll();
+			}
+		}, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 异步写入，返回的future在数据写入hbase后完成，写入失败则异常完成；
+	 * 只在待写入数据已满且为BLOCK时阻塞
+	 * @param tableName
+	 * @param mutations
+	 * @return
+	 */
+	public CompletableFuture<Void> mutate(String tableName, List<? extends Mutation> mutations) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (closed) {
+			future.completeExceptionally(new IllegalStateException("HbaseMutatorManager已关闭！"));
+			return future;
+		}
+		if (null == mutations || mutations.size() == 0) {
+			future.complete(null);
+			return future;
+		}
+
+		// 启用spool时入队即打上客户端时间戳，之后重放的旧数据不会覆盖更新的版本
+		HbaseSpool s = spool;
+		if (null != s) {
+			try {
+				HbaseSpool.stamp(mutations, System.currentTimeMillis());
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+				return future;
+			}
+		}
+
+		// hbase不可用期间直接写spool，不占用队列
+		if (null != s && deferToSpool && s.hasBacklog()) {
+			try {
+				s.append(tableName, mutations);
+				future.complete(null);
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+
+		final TableMutator tm;
+		try {
+			tm = getTableMutator(tableName);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		// 复制一份，调用方可以继续复用自己的list
+		PendingWrite pw = new PendingWrite(new ArrayList<Mutation>(mutations), future);
+		if (!reserve(tm, pw)) {
+			return future;
+		}
+		tm.pending.offer(pw);
+		tm.pendingBytes.addAndGet(pw.heapSize);
+
+		// 与close并发时，close最后一次清空队列后才入队的数据不会再被写入
+		if (closed && tm.pending.remove(pw)) {
+			discard(tm, pw, new IllegalStateException("HbaseMutatorManager已关闭！"));
+			return future;
+		}
+
+		// 达到当前批次大小，交给后台线程flush
+		if (tm.pendingBytes.get() >= batchBytes.get()) {
+			scheduleFlush(tm);
+		}
+		return future;
+	}
+
+	/**
+	 * 启用本地spool：写入失败的数据转存到spool，future正常完成，由spool后台重放
+	 * @param spool
+	 * @param defer spool中有未重放的数据时新写入和已入队的数据是否也进spool
+	 */
+	public void setSpool(HbaseSpool spool, boolean defer) {
+		this.spool = spool;
+		this.deferToSpool = defer;
+	}
+
+	/**
+	 * 待写入数据(含正在flush的)总量(字节)
+	 * @return
+	 */
+	public long getPendingBytes() {
+		return totalPending.get();
+	}
+
+	/**
+	 * 当前每批大小(字节)
+	 * @return
+	 */
+	public long getBatchBytes() {
+		return batchBytes.get();
+	}
+
+	/**
+	 * 当前同时flush的表数上限
+	 * @return
+	 */
+	public long getFlushConcurrency() {
+		return concurrency.get();
+	}
+
+	/**
+	 * 同步flush指定表当前已入队的数据
+	 * @param tableName
+	 */
+	public void flush(String tableName) {
+		TableMutator tm = mutators.get(tableName);
+		if (null != tm) {
+			tm.flush();
+		}
+	}
+
+	/**
+	 * flush所有表
+	 */
+	public void flushAll() {
+		for (TableMutator tm : mutators.values()) {
+			if (!tm.pending.isEmpty()) {
+				tm.flush();
+			}
+		}
+	}
+
+	/**
+	 * 关闭：停止接收新数据，flush剩余数据并关闭所有mutator
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flusher.shutdown();
+		try {
+			if (!flusher.awaitTermination(flushIntervalMs * 10, TimeUnit.MILLISECONDS)) {
+				logger.error("HbaseMutatorManager flush线程未能在超时时间内结束！");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// 写完剩余数据再关闭，flush之后仍在队列中的数据以异常结束，调用方不会一直等待
+		synchronized (mutators) {
+			for (TableMutator tm : mutators.values()) {
+				tm.flush();
+				PendingWrite pw;
+				while ((pw = tm.pending.poll()) != null) {
+					discard(tm, pw, new IllegalStateException(
+						"HbaseMutatorManager已关闭，数据未写入！"));
+				}
+				HbaseDaoImpl.closeConnect(tm.mutator);
+			}
+			mutators.clear();
+		}
+	}
+
+	/**
+	 * 已从队列取出、不再写入的数据：释放空间并以异常结束
+	 * @param tm
+	 * @param pw
+	 * @param cause
+	 */
+	private void discard(TableMutator tm, PendingWrite pw, Throwable cause) {
+		tm.pendingBytes.addAndGet(-pw.heapSize);
+		release(pw.heapSize);
+		pw.future.completeExceptionally(cause);
+	}
+
+	private void scheduleFlush(final TableMutator tm) {
+		if (tm.flushScheduled.compareAndSet(false, true)) {
+			try {
+				flusher.execute(new Runnable() {
+					@Override
+					public void run() {
+						tm.flush();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+
+				// 关闭中，由close写完剩余数据
+				tm.flushScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * 为一次入队占用空间，已满时按overflowPolicy处理；失败时已异常完成future
+	 * @param tm
+	 * @param pw
+	 * @return 是否可以入队
+	 */
+	private boolean reserve(TableMutator tm, PendingWrite pw) {
+		if (tryReserve(pw.heapSize)) {
+			return true;
+		}
+		switch (overflowPolicy) {
+			case SHED:
+				PendingWrite oldest;
+				while ((oldest = tm.pending.poll()) != null) {
+					HbaseMetrics.stats(tm.tableName, HbaseMetrics.Op.ASYN_FLUSH).error();
+					discard(tm, oldest, new RejectedExecutionException("表:" + tm.tableName
+						+ " 待写入数据已满，丢弃最早入队的数据！"));
+					if (tryReserve(pw.heapSize)) {
+						return true;
+					}
+				}
+				break;
+			case BLOCK:
+				scheduleFlush(tm);
+				if (awaitReserve(pw.heapSize)) {
+					return true;
+				}
+				break;
+			default:
+				break;
+		}
+		pw.future.completeExceptionally(new RejectedExecutionException("表:" + tm.tableName
+			+ " 待写入数据已满：" + totalPending.get() + "字节！"));
+		return false;
+	}
+
+	/**
+	 * 等待flush释放空间，最多等待blockTimeoutMs
+	 * @param bytes
+	 * @return 是否占用成功
+	 */
+	private boolean awaitReserve(long bytes) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+		synchronized (capacity) {
+			while (!tryReserve(bytes)) {
+				long waitMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (waitMs <= 0 || closed) {
+					return false;
+				}
+				try {
+					capacity.wait(waitMs);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 占用空间，没有待写入数据时总能放入，避免单次超过上限的写入永远放不进去
+	 * @param bytes
+	 * @return
+	 */
+	private boolean tryReserve(long bytes) {
+		while (true) {
+			long current = totalPending.get();
+			if (current != 0 && current + bytes > maxPendingBytes) {
+				return false;
+			}
+			if (totalPending.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 释放空间并唤醒等待的生产者
+	 * @param bytes
+	 */
+	private void release(long bytes) {
+		totalPending.addAndGet(-bytes);
+		synchronized (capacity) {
+			capacity.notifyAll();
+		}
+	}
+
+	/**
+	 * 占用一个flush并发，超过自适应上限时等待
+	 */
+	private void acquireFlushSlot() {
+		synchronized (capacity) {
+			while (flushing >= concurrency.get() && !closed) {
+				try {
+					capacity.wait(flushIntervalMs);
+				} catch (InterruptedException e) {
+
+					// 不丢数据，直接flush
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			flushing++;
+		}
+	}
+
+	private void releaseFlushSlot() {
+		synchronized (capacity) {
+			flushing--;
+			capacity.notifyAll();
+		}
+	}
+
+	/**
+	 * 按一批的耗时和失败调整批次大小和并发：变慢或失败时减半，否则加一个步长
+	 * @param elapsedMs
+	 * @param failed
+	 */
+	private void adapt(long elapsedMs, boolean failed) {
+		if (failed || elapsedMs > targetLatencyMs) {
+			batchBytes.decrease();
+			concurrency.decrease();
+		} else {
+			batchBytes.increase();
+			concurrency.increase();
+		}
+	}
+
+	/**
+	 * 获取或创建表的mutator
+	 * @param tableName
+	 * @return
+	 * @throws IOException
+	 */
+	private TableMutator getTableMutator(String tableName) throws IOException {
+		TableMutator tm = mutators.get(tableName);
+		if (null != tm) {
+			return tm;
+		}
+		synchronized (mutators) {
+			tm = mutators.get(tableName);
+			if (null == tm) {
+
+				// close已开始关闭mutator，不再创建新的
+				if (closed) {
+					throw new IOException("HbaseMutatorManager已关闭！");
+				}
+				tm = new TableMutator(tableName);
+				mutators.put(tableName, tm);
+			}
+		}
+		return tm;
+	}
+
+	/**
+	 * 一次入队的数据
+	 */
+	private static class PendingWrite {
+
+		private final List<Mutation>			mutations;
+
+		private final CompletableFuture<Void>	future;
+
+		private final long						heapSize;
+
+		PendingWrite(List<Mutation> mutations, CompletableFuture<Void> future) {
+			this.mutations = mutations;
+			this.future = future;
+			long size = 0;
+			for (Mutation m : mutations) {
+				size += m.heapSize();
+			}
+			this.heapSize = size;
+		}
+	}
+
+	/**
+	 * 单表的mutator及待写入队列
+	 */
+	private class TableMutator {
+
+		private final String								tableName;
+
+		private final BufferedMutator						mutator;
+
+		private final ConcurrentLinkedQueue<PendingWrite>	pending			= new ConcurrentLinkedQueue<PendingWrite>();
+
+		private final AtomicLong							pendingBytes	= new AtomicLong(0);
+
+		private final AtomicBoolean							flushScheduled	= new AtomicBoolean(false);
+
+		/**
+		 * 本轮flush中写入失败的rowkey，只在flush线程持锁时读写
+		 */
+		private final Map<byte[], Throwable>				failedRows		= new TreeMap<byte[], Throwable>(
+																				Bytes.BYTES_COMPARATOR);
+
+		TableMutator(String tableName) throws IOException {
+			this.tableName = tableName;
+
+			// 创建监听器，记录失败的rowkey，由flush统一通知调用方
+			BufferedMutator.ExceptionListener listener = new BufferedMutator.ExceptionListener() {
+				@Override
+				public void onException(RetriesExhaustedWithDetailsException e,
+										BufferedMutator mutator) {
+					for (int i = 0; i < e.getNumExceptions(); i++) {
+						byte[] row = e.getRow(i).getRow();
+						logger.error("写入失败： " + Bytes.toStringBinary(row) + "！");
+						failedRows.put(row, e.getCause(i));
+					}
+				}
+			};
+
+			// 设置表的缓存参数
+			BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(tableName))
+				.listener(listener);
+			params.writeBufferSize(flushSize);
+			this.mutator = connection.getBufferedMutator(params);
+		}
+
+		/**
+		 * 按当前批次大小分批写入调用时队列中的数据并通知调用方，
+		 * 之后入队的数据留给下一次flush，避免一直写入的表占住flush线程
+		 */
+		synchronized void flush() {
+			flushScheduled.set(false);
+			long target = pendingBytes.get();
+			long drained = 0;
+			do {
+
+				// 取出一批，至少一次入队的数据
+				List<PendingWrite> batch = new ArrayList<PendingWrite>();
+				long bytes = 0;
+				long limit = batchBytes.get();
+				PendingWrite pw;
+				while (bytes < limit && (pw = pending.poll()) != null) {
+					batch.add(pw);
+					bytes += pw.heapSize;
+				}
+				if (batch.isEmpty()) {
+					return;
+				}
+				pendingBytes.addAndGet(-bytes);
+				drained += bytes;
+
+				acquireFlushSlot();
+				try {
+					write(batch, bytes);
+				} finally {
+					releaseFlushSlot();
+					release(bytes);
+				}
+			} while (drained < target);
+		}
+
+		/**
+		 * 写入一批
+		 * @param batch
+		 * @param bytes
+		 */
+		private void write(List<PendingWrite> batch, long bytes) {
+
+			// spool还有未重放的数据时，在它之前入队的数据也排到spool后面，不越过spool直接写hbase
+			HbaseSpool s = spool;
+			if (null != s && deferToSpool && s.hasBacklog()) {
+				for (PendingWrite write : batch) {
+					Throwable cause = toSpool(write, true);
+					if (null != cause) {
+						write.future.completeExceptionally(cause);
+					} else {
+						write.future.complete(null);
+					}
+				}
+				return;
+			}
+			long startNanos = System.nanoTime();
+			HbaseOperationStats stats = HbaseMetrics.stats(tableName, HbaseMetrics.Op.ASYN_FLUSH);
+			failedRows.clear();
+			IOException error = null;
+			int rows = 0;
+			try {
+
+				// 添加
+				for (PendingWrite write : batch) {
+					mutator.mutate(write.mutations);
+					rows += write.mutations.size();
+				}
+
+				// 提交
+				mutator.flush();
+			} catch (IOException e) {
+				logger.error("表:{} flush失败！", tableName, e);
+				error = e;
+			}
+			boolean failed = null != error || !failedRows.isEmpty();
+			if (failed) {
+				stats.error();
+				stats.failedRows(failedRows.size());
+			}
+			stats.written(rows - failedRows.size(), bytes);
+			stats.record(startNanos);
+			adapt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), failed);
+
+			// 通知调用方，启用spool时失败的数据转存到spool
+			for (PendingWrite write : batch) {
+				Throwable cause = null != error ? error : firstFailure(write);
+				if (null != cause && null != spool) {
+					cause = toSpool(write, null != error);
+				}
+				if (null != cause) {
+					write.future.completeExceptionally(cause);
+				} else {
+					write.future.complete(null);
+				}
+			}
+		}
+
+		/**
+		 * 失败的数据写入spool
+		 * @param write
+		 * @param all 整批失败
+		 * @return 写入spool失败的原因，成功为null
+		 */
+		private Throwable toSpool(PendingWrite write, boolean all) {
+			List<Mutation> failed = write.mutations;
+			if (!all) {
+				failed = new ArrayList<Mutation>();
+				for (Mutation m : write.mutations) {
+					if (failedRows.containsKey(m.getRow())) {
+						failed.add(m);
+					}
+				}
+			}
+			try {
+				spool.append(tableName, failed);
+				logger.warn("表:{} {}条写入失败的数据已转存spool", tableName, failed.size());
+				return null;
+			} catch (IOException e) {
+				logger.error("表:{} 写入失败的数据转存spool失败！", tableName, e);
+				return e;
+			}
+		}
+
+		/**
+		 * 找出一次入队的数据中第一个失败原因
+		 * @param write
+		 * @return
+		 */
+		private Throwable firstFailure(PendingWrite write) {
+			if (failedRows.isEmpty()) {
+				return null;
+			}
+			for (Mutation m : write.mutations) {
+				Throwable cause = failedRows.get(m.getRow());
+				if (null != cause) {
+					return cause;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.touna.dao.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+
+import com.touna.bean.HBasePageModel;
+
+/**
+ *
+ *
+ * @Filename HbaseOffloadDao.java
+ *
+ * @Description 把HbaseDao的调用从业务线程卸载出去，所有方法立即返回CompletableFuture。
+ *              写入走共享mutator/put合并队列，不占用调用线程；
+ *              读和scan不是非阻塞的：hbase 1.x客户端没有AsyncConnection，仍在有界线程池中
+ *              同步调用HbaseDaoImpl，每个进行中的读占住一个线程，并发上限即读线程数，
+ *              超出的在队列中等待。只隔离业务线程，不减少等待rpc的线程数
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseOffloadDao {
+
+	/**
+	 * 同步dao
+	 */
+	private final HbaseDaoImpl		dao;
+
+	/**
+	 * 读线程池，线程在其中阻塞等待rpc
+	 */
+	private final ExecutorService	executor;
+
+	private static final HbaseOffloadDao	offloadDao	= new HbaseOffloadDao(
+														HbaseDaoImpl.getInstance(),
+														Integer.parseInt(HbaseDaoImpl.getProperty(
+															"hbase.offload.read.threads", "32")));
+
+	public static HbaseOffloadDao getInstance() {
+		return offloadDao;
+	}
+
+	/**
+	 * @param dao
+	 * @param readThreads 读线程数，同时也是读的并发上限
+	 */
+	public HbaseOffloadDao(HbaseDaoImpl dao, int readThreads) {
+		this.dao = dao;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(readThreads, readThreads, 60,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new HbaseThreadFactory(
+				"hbase-offload-read"));
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * 获取单条数据
+	 * @param tablename
+	 * @param row
+	 * @param columns
+	 * @return
+	 */
+	public CompletableFuture<Result> getRow(final String tablename, final String row,
+											final List<String> columns) {
+		return submit(new Callable<Result>() {
+			@Override
+			public Result call() throws Exception {
+				return dao.getRow(tablename, row, columns);
+			}
+		});
+	}
+
+	/**
+	 * 获取多行数据
+	 * @param tablename
+	 * @param rows
+	 * @param columns
+	 * @return
+	 */
+	public CompletableFuture<Result[]> getRows(final String tablename, final List<String> rows,
+												final List<String> columns) {
+		return submit(new Callable<Result[]>() {
+			@Override
+			public Result[] call() throws Exception {
+				return dao.getRows(tablename, rows, columns);
+			}
+		});
+	}
+
+	/**
+	 * 写入单条数据，写入hbase后完成
+	 * @param tablename
+	 * @param put
+	 * @return
+	 */
+	public CompletableFuture<Void> addData(String tablename, Put put) {
+		return dao.addDataAsynFuture(tablename, put);
+	}
+
+	/**
+	 * 批量写入数据，写入hbase后完成
+	 * @param tablename
+	 * @param puts
+	 * @return
+	 */
+	public CompletableFuture<Void> addDataBatch(String tablename, List<Put> puts) {
+		return dao.addDataBatchAsynFuture(tablename, puts);
+	}
+
+	/**
+	 * 删除单条数据
+	 * @param tablename
+	 * @param row
+	 * @return
+	 */
+	public CompletableFuture<Void> delete(String tablename, String row) {
+		return dao.deleteAsynFuture(tablename, Collections.singletonList(row));
+	}
+
+	/**
+	 * 删除多行数据
+	 * @param tablename
+	 * @param rows
+	 * @return
+	 */
+	public CompletableFuture<Void> delete(String tablename, List<String> rows) {
+		return dao.deleteAsynFuture(tablename, rows);
+	}
+
+	/**
+	 * 根据范围扫描rowkey
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @return
+	 */
+	public CompletableFuture<List<Result>> getRowsByStartAndStop(final String tablename,
+																	final String start,
+																	final String stop) {
+		return submit(new Callable<List<Result>>() {
+			@Override
+			public List<Result> call() throws Exception {
+				return dao.getRowsByStartAndStop(tablename, start, stop);
+			}
+		});
+	}
+
+	/**
+	 * filter 查询
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param scvfs
+	 * @param rfs
+	 * @param operator
+	 * @return
+	 */
+	public CompletableFuture<List<Result>> getRowsByFilters(final String tablename,
+															final String start,
+															final String stop,
+															final List<SingleColumnValueFilter> scvfs,
+															final List<RowFilter> rfs,
+															final FilterList.Operator operator) {
+		return submit(new Callable<List<Result>>() {
+			@Override
+			public List<Result> call() throws Exception {
+				return dao.getRowsByFilters(tablename, start, stop, scvfs, rfs, operator);
+			}
+		});
+	}
+
+	/**
+	 * 分页
+	 * @param pageModel
+	 * @return
+	 */
+	public CompletableFuture<HBasePageModel> scanResultByPageModel(final HBasePageModel pageModel) {
+		return submit(new Callable<HBasePageModel>() {
+			@Override
+			public HBasePageModel call() throws Exception {
+				return dao.scanResultByPageModel(pageModel);
+			}
+		});
+	}
+
+	/**
+	 * 推送式范围扫描，逐行回调consumer，返回的future在扫描结束后完成
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param options scan调优参数，可为空
+	 * @param consumer
+	 * @return
+	 */
+	public CompletableFuture<Void> scan(final String tablename, final String start,
+										final String stop, final HbaseScanOptions options,
+										final HbaseScanConsumer consumer) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				HbaseResultStream stream = null;
+				try {
+					stream = dao.streamRowsByStartAndStop(tablename, start, stop, options);
+					while (stream.hasNext()) {
+						if (!consumer.onNext(stream.next())) {
+							break;
+						}
+					}
+				} catch (Exception e) {
+					consumer.onError(e);
+					throw e;
+				} finally {
+					if (null != stream) {
+						stream.close();
+					}
+				}
+				consumer.onComplete();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * 关闭读线程池
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * 在读线程池上阻塞执行，线程都在使用时排队
+	 * @param task
+	 * @return
+	 */
+	private <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(task.call());
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
@@ -0,0 +1,208 @@
+package com.touna.dao.impl;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ *
+ *
+ * @Filename HbaseOperationStats.java
+ *
+ * @Description 单个表+操作的延迟直方图和计数，记录时不分配对象
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseOperationStats implements HbaseOperationStatsMXBean {
+
+	private final String				tableName;
+
+	private final String				operation;
+
+	private final HbaseLatencyHistogram	latency			= new HbaseLatencyHistogram();
+
+	private final AtomicLong			errors			= new AtomicLong();
+
+	private final AtomicLong			failedRows		= new AtomicLong();
+
+	private final AtomicLong			rowsRead		= new AtomicLong();
+
+	private final AtomicLong			bytesRead		= new AtomicLong();
+
+	private final AtomicLong			rowsWritten		= new AtomicLong();
+
+	private final AtomicLong			bytesWritten	= new AtomicLong();
+
+	private final AtomicLong			staleReads		= new AtomicLong();
+
+	public HbaseOperationStats(String tableName, String operation) {
+		this.tableName = tableName;
+		this.operation = operation;
+	}
+
+	/**
+	 * 记录一次调用的耗时
+	 * @param startNanos 开始时System.nanoTime()
+	 */
+	public void record(long startNanos) {
+		latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	public void error() {
+		errors.incrementAndGet();
+	}
+
+	/**
+	 * 重试耗尽仍写入失败的行数
+	 * @param n
+	 */
+	public void failedRows(long n) {
+		failedRows.addAndGet(n);
+	}
+
+	public void read(long rows, long bytes) {
+		rowsRead.addAndGet(rows);
+		bytesRead.addAndGet(bytes);
+	}
+
+	public void read(Result result) {
+		if (null != result) {
+			read(1, sizeOf(result));
+		}
+	}
+
+	public void read(Result[] results) {
+		if (null != results) {
+			for (Result result : results) {
+				read(result);
+			}
+		}
+	}
+
+	public void read(Collection<Result> results) {
+		if (null != results) {
+			for (Result result : results) {
+				read(result);
+			}
+		}
+	}
+
+	/**
+	 * 由region副本返回(可能落后于主region)的结果数
+	 * @param n
+	 */
+	public void stale(long n) {
+		staleReads.addAndGet(n);
+	}
+
+	public void written(long rows, long bytes) {
+		rowsWritten.addAndGet(rows);
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Result的序列化字节数
+	 * @param result
+	 * @return
+	 */
+	public static long sizeOf(Result result) {
+		long size = 0;
+		Cell[] cells = result.rawCells();
+		if (null != cells) {
+			for (Cell cell : cells) {
+				size += CellUtil.estimatedSerializedSizeOf(cell);
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public String getTableName() {
+		return tableName;
+	}
+
+	@Override
+	public String getOperation() {
+		return operation;
+	}
+
+	@Override
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public long getFailedRows() {
+		return failedRows.get();
+	}
+
+	@Override
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getRowsWritten() {
+		return rowsWritten.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public long getStaleReads() {
+		return staleReads.get();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		return latency.getMean();
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return latency.getMax();
+	}
+
+	@Override
+	public long getP50Micros() {
+		return latency.getQuantile(0.5);
+	}
+
+	@Override
+	public long getP99Micros() {
+		return latency.getQuantile(0.99);
+	}
+
+	@Override
+	public long getP999Micros() {
+		return latency.getQuantile(0.999);
+	}
+
+	@Override
+	public String toString() {
+		return tableName + "." + operation + " count=" + getCount() + " errors=" + getErrors()
+				+ " failedRows=" + getFailedRows() + " rowsRead=" + getRowsRead() + " bytesRead="
+				+ getBytesRead() + " rowsWritten=" + getRowsWritten() + " bytesWritten="
+				+ getBytesWritten() + " staleReads=" + getStaleReads() + " mean="
+				+ (long) getMeanMicros() + "us p50=" + getP50Micros() + "us p99=" + getP99Micros()
+				+ "us p999=" + getP999Micros() + "us max=" + getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,44 @@
+package com.touna.dao.impl;
+
+/**
+ *
+ *
+ * @Filename HbaseOperationStatsMXBean.java
+ *
+ * @Description 单个表+操作的统计，通过jmx暴露，延迟单位微秒
+ *
+ * @Version 1.0
+ *
+ */
+public interface HbaseOperationStatsMXBean {
+
+	String getTableName();
+
+	String getOperation();
+
+	long getCount();
+
+	long getErrors();
+
+	long getFailedRows();
+
+	long getRowsRead();
+
+	long getBytesRead();
+
+	long getRowsWritten();
+
+	long getBytesWritten();
+
+	long getStaleReads();
+
+	double getMeanMicros();
+
+	long getMaxMicros();
+
+	long getP50Micros();
+
+	long getP99Micros();
+
+	long getP999Micros();
+}
@@ -0,0 +1,154 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbasePageIndexCache.java
+ *
+ * @Description 分页起始rowkey索引：按表+filter记录第n行(从1开始)的rowkey，
+ *              跳页时从最近的已知行开始往后数，每张表内LRU淘汰，超过ttl或表有写入时失效；
+ *              默认不启用，只有本进程的写入能立即失效，其他进程写入后ttl内跳页可能错位
+ *
+ * @Version 1.0
+ *
+ */
+public class HbasePageIndexCache {
+
+	/**
+	 * 每张表最多缓存的filter组合数
+	 */
+	private final int									maxEntries;
+
+	/**
+	 * 过期时间(毫秒)
+	 */
+	private final long									ttlMs;
+
+	/**
+	 * 表名 -> 该表的索引，表有写入时整张表移除
+	 */
+	private final ConcurrentMap<String, TableIndexes>	tables	= new ConcurrentHashMap<String, TableIndexes>();
+
+	/**
+	 * @param maxEntries 每张表最多缓存的filter组合数
+	 * @param ttlMs 过期时间(毫秒)
+	 */
+	public HbasePageIndexCache(int maxEntries, long ttlMs) {
+		this.maxEntries = maxEntries;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * 生成表内的缓存key，filter无法序列化时返回null，表示不缓存
+	 * @param filterList
+	 * @return
+	 */
+	public static String key(FilterList filterList) {
+		if (null == filterList) {
+			return "";
+		}
+		try {
+			return Bytes.toStringBinary(filterList.toByteArray());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 查找不大于rowNum的最近一个已知行
+	 * @param tableName
+	 * @param key
+	 * @param rowNum 第几行，从1开始
+	 * @return key为行号，value为rowkey，没有返回null
+	 */
+	public Map.Entry<Integer, String> floor(String tableName, String key, int rowNum) {
+		TableIndexes t = tables.get(tableName);
+		if (null == t) {
+			return null;
+		}
+		synchronized (t) {
+			Index index = t.indexes.get(key);
+			if (null == index) {
+				return null;
+			}
+			if (System.currentTimeMillis() - index.createTime > ttlMs) {
+				t.indexes.remove(key);
+				return null;
+			}
+			return index.rows.floorEntry(rowNum);
+		}
+	}
+
+	/**
+	 * 记录第rowNum行的rowkey
+	 * @param tableName
+	 * @param key
+	 * @param rowNum
+	 * @param rowKey
+	 */
+	public void put(String tableName, String key, int rowNum, String rowKey) {
+		TableIndexes t = tables.get(tableName);
+		if (null == t) {
+			TableIndexes created = new TableIndexes(maxEntries);
+			t = tables.putIfAbsent(tableName, created);
+			if (null == t) {
+				t = created;
+			}
+		}
+		synchronized (t) {
+			Index index = t.indexes.get(key);
+			if (null == index || System.currentTimeMillis() - index.createTime > ttlMs) {
+				index = new Index();
+				t.indexes.put(key, index);
+			}
+			index.rows.put(rowNum, rowKey);
+		}
+	}
+
+	/**
+	 * 表有写入，该表的索引全部失效；只移除该表的条目，不影响其他表的读写
+	 * @param tableName
+	 */
+	public void invalidate(String tableName) {
+		tables.remove(tableName);
+	}
+
+	/**
+	 * 一张表的索引，按访问顺序排列，超过最大条数淘汰最久未访问的
+	 */
+	private static class TableIndexes {
+
+		private final LinkedHashMap<String, Index>	indexes;
+
+		TableIndexes(final int maxEntries) {
+			this.indexes = new LinkedHashMap<String, Index>(16, 0.75f, true) {
+				private static final long	serialVersionUID	= 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+	}
+
+	/**
+	 * 单个表+filter的行号索引
+	 */
+	private static class Index {
+
+		private final long						createTime	= System.currentTimeMillis();
+
+		private final TreeMap<Integer, String>	rows		= new TreeMap<Integer, String>();
+	}
+}
@@ -0,0 +1,209 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbasePreparedQuery.java
+ *
+ * @Description 预编译的查询模板：表名、cf列、filter和scan调优参数只编码一次，
+ *              之后按rowkey或范围生成Get/Scan时不再做字符串到字节的转换；创建后不可变，可在线程间共享，
+ *              filter在每次生成的Get/Scan间共享，调用方不要再修改
+ *
+ * @Version 1.0
+ *
+ */
+public final class HbasePreparedQuery {
+
+	private final String			tableName;
+
+	private final TableName			table;
+
+	private final byte[]			family;
+
+	/**
+	 * cf下的列，为空查询全部列
+	 */
+	private final List<String>		columns;
+
+	private final byte[][]			qualifiers;
+
+	/**
+	 * 行缓存中的列key，启用行缓存时第一次查询才生成
+	 */
+	private String					columnsKey;
+
+	private final FilterList		filterList;
+
+	private final HbaseScanOptions	options;
+
+	/**
+	 * 已设置列、filter和调优参数的scan，每次复制后设置起止rowkey；
+	 * 第一次scan时才创建，只用于get的查询(如旧接口每次调用新建的查询)不分配
+	 */
+	private volatile Scan			scan;
+
+	private HbasePreparedQuery(String tableName, List<String> columns, FilterList filterList,
+								HbaseScanOptions options) {
+		this.tableName = tableName;
+		this.table = TableName.valueOf(tableName);
+		this.family = Bytes.toBytes("cf");
+		if (null == columns || columns.isEmpty()) {
+			this.columns = Collections.emptyList();
+		} else {
+			this.columns = Collections.unmodifiableList(new ArrayList<String>(columns));
+		}
+		this.qualifiers = new byte[this.columns.size()][];
+		for (int i = 0; i < qualifiers.length; i++) {
+			qualifiers[i] = Bytes.toBytes(this.columns.get(i));
+		}
+		this.filterList = filterList;
+		this.options = options;
+	}
+
+	/**
+	 * @param tableName
+	 * @param columns cf下的列，为空查询全部列
+	 * @return
+	 */
+	public static HbasePreparedQuery of(String tableName, List<String> columns) {
+		return new HbasePreparedQuery(tableName, columns, null, null);
+	}
+
+	/**
+	 * @param tableName
+	 * @param columns cf下的列，为空查询全部列
+	 * @param filterList 可为空，get和scan都会带上
+	 * @param options scan调优参数，可为空，只用于scan
+	 * @return
+	 */
+	public static HbasePreparedQuery of(String tableName, List<String> columns,
+										FilterList filterList, HbaseScanOptions options) {
+		return new HbasePreparedQuery(tableName, columns, filterList, options);
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public TableName getTable() {
+		return table;
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	public FilterList getFilterList() {
+		return filterList;
+	}
+
+	/**
+	 * @return 有filter时为null(不使用行缓存)
+	 */
+	String columnsKey() {
+		if (null != filterList) {
+			return null;
+		}
+
+		// String不可变，并发时重复生成也无妨
+		String key = columnsKey;
+		if (null == key) {
+			key = HbaseRowCache.columnsKey(columns);
+			columnsKey = key;
+		}
+		return key;
+	}
+
+	/**
+	 * 查询一行
+	 * @param row 实际rowkey(加盐表已加桶号)
+	 * @return
+	 */
+	public Get newGet(byte[] row) {
+		Get get = new Get(row);
+		for (byte[] q : qualifiers) {
+			get.addColumn(family, q);
+		}
+		if (null != filterList) {
+			get.setFilter(filterList);
+		}
+		return get;
+	}
+
+	/**
+	 * 范围扫描
+	 * @param start 为空从表头开始
+	 * @param stop 为空到表尾，不包含
+	 * @return
+	 */
+	public Scan newScan(byte[] start, byte[] stop) {
+		Scan s = copy();
+		if (null != start) {
+			s.setStartRow(start);
+		}
+		if (null != stop) {
+			s.setStopRow(stop);
+		}
+		return s;
+	}
+
+	/**
+	 * 范围扫描，模板的filter之外再加一个filter(如PageFilter)，都需满足
+	 * @param start 为空从表头开始
+	 * @param stop 为空到表尾，不包含
+	 * @param filter
+	 * @return
+	 */
+	public Scan newScan(byte[] start, byte[] stop, Filter filter) {
+		Scan s = newScan(start, stop);
+		if (null == filterList) {
+			s.setFilter(filter);
+		} else {
+			s.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, filterList, filter));
+		}
+		return s;
+	}
+
+	private Scan copy() {
+		Scan template = scan;
+		if (null == template) {
+			template = template();
+		}
+		try {
+			return new Scan(template);
+		} catch (IOException e) {
+
+			// 复制只读取模板自身的属性，不会失败
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private synchronized Scan template() {
+		if (null == scan) {
+			Scan s = new Scan();
+			for (byte[] q : qualifiers) {
+				s.addColumn(family, q);
+			}
+			if (null != filterList) {
+				s.setFilter(filterList);
+			}
+			if (null != options) {
+				options.applyTo(s);
+			}
+			scan = s;
+		}
+		return scan;
+	}
+}
@@ -0,0 +1,313 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbasePutCoalescer.java
+ *
+ * @Description 单条put合并：并发调用addData的put先入队，分发线程在一个很短的时间窗口内
+ *              或攒够一批后按表合并成一次批量put，每个调用方单独拿到自己的成功或失败
+ *
+ * @Version 1.0
+ *
+ */
+public class HbasePutCoalescer {
+
+	/**
+	 * 日志
+	 */
+	private static final Logger					logger	= LoggerFactory
+															.getLogger(HbasePutCoalescer.class);
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection					connection;
+
+	/**
+	 * 合并时间窗口(微秒)
+	 */
+	private final long							windowMicros;
+
+	/**
+	 * 一批最多合并的put数
+	 */
+	private final int							maxBatch;
+
+	/**
+	 * 待合并的put
+	 */
+	private final LinkedBlockingQueue<Pending>	queue	= new LinkedBlockingQueue<Pending>();
+
+	/**
+	 * 分发线程
+	 */
+	private final Thread						dispatcher;
+
+	/**
+	 * 执行批量put的线程池，不同表的批次并行
+	 */
+	private final ExecutorService				writers;
+
+	private volatile boolean					closed	= false;
+
+	/**
+	 * @param connection
+	 * @param windowMicros 合并时间窗口(微秒)
+	 * @param maxBatch 一批最多合并的put数
+	 * @param writeThreads 执行批量put的线程数
+	 */
+	public HbasePutCoalescer(Connection connection, long windowMicros, int maxBatch,
+								int writeThreads) {
+		this.connection = connection;
+		this.windowMicros = windowMicros;
+		this.maxBatch = maxBatch;
+		this.writers = Executors.newFixedThreadPool(writeThreads, new HbaseThreadFactory(
+			"hbase-put-coalesce-write"));
+		this.dispatcher = new HbaseThreadFactory("hbase-put-coalesce").newThread(new Runnable() {
+			@Override
+			public void run() {
+				dispatchLoop();
+			}
+		});
+		this.dispatcher.start();
+	}
+
+	/**
+	 * 入队，返回的future在put写入hbase后完成，失败则异常完成
+	 * @param tableName
+	 * @param put
+	 * @return
+	 */
+	public CompletableFuture<Void> put(String tableName, Put put) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (closed) {
+			future.completeExceptionally(new IllegalStateException("HbasePutCoalescer已关闭！"));
+			return future;
+		}
+		Pending pending = new Pending(tableName, put, future);
+		queue.offer(pending);
+
+		// 与close并发时，close清空队列后才入队的数据不会再被写入
+		if (closed && queue.remove(pending)) {
+			future.completeExceptionally(new IllegalStateException("HbasePutCoalescer已关闭！"));
+		}
+		return future;
+	}
+
+	/**
+	 * 关闭：停止接收新数据，写完已入队的数据；30秒内未写完的数据以异常结束，调用方不会一直等待
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		dispatcher.interrupt();
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// 分发线程退出后才入队的数据
+		List<Pending> rest = new ArrayList<Pending>();
+		queue.drainTo(rest);
+		if (!rest.isEmpty()) {
+			submit(rest);
+		}
+		writers.shutdown();
+		try {
+			writers.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// 未开始执行的批次和仍在队列中的数据都以异常结束
+		IllegalStateException closedError = new IllegalStateException(
+			"HbasePutCoalescer已关闭，数据未写入！");
+		for (Runnable r : writers.shutdownNow()) {
+			if (r instanceof WriteTask) {
+				fail(((WriteTask) r).pendings, closedError);
+			}
+		}
+		rest.clear();
+		queue.drainTo(rest);
+		fail(rest, closedError);
+	}
+
+	/**
+	 * 以异常结束
+	 * @param pendings
+	 * @param cause
+	 */
+	private static void fail(List<Pending> pendings, Throwable cause) {
+		for (Pending p : pendings) {
+			p.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * 分发循环：等到第一个put后，在时间窗口内继续收集，然后按表提交
+	 */
+	private void dispatchLoop() {
+		List<Pending> batch = new ArrayList<Pending>(maxBatch);
+		while (true) {
+			try {
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (null == first) {
+					if (closed) {
+						break;
+					}
+					continue;
+				}
+				batch.add(first);
+
+				// 时间窗口内继续收集，攒够一批立即提交
+				long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+				while (batch.size() < maxBatch) {
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) {
+						break;
+					}
+					Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (null == next) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+
+				// 关闭时写完剩余数据
+				queue.drainTo(batch);
+				submit(batch);
+				break;
+			}
+			queue.drainTo(batch, maxBatch - batch.size());
+			submit(batch);
+			batch = new ArrayList<Pending>(maxBatch);
+		}
+	}
+
+	/**
+	 * 按表分组提交
+	 * @param batch
+	 */
+	private void submit(List<Pending> batch) {
+		Map<String, List<Pending>> byTable = new LinkedHashMap<String, List<Pending>>();
+		for (Pending p : batch) {
+			List<Pending> list = byTable.get(p.tableName);
+			if (null == list) {
+				list = new ArrayList<Pending>();
+				byTable.put(p.tableName, list);
+			}
+			list.add(p);
+		}
+		for (Map.Entry<String, List<Pending>> e : byTable.entrySet()) {
+			writers.execute(new WriteTask(e.getKey(), e.getValue()));
+		}
+	}
+
+	/**
+	 * 一次批量put，按put对象把失败原因分发给对应的调用方
+	 * @param tableName
+	 * @param pendings
+	 */
+	private void write(String tableName, List<Pending> pendings) {
+		List<Put> puts = new ArrayList<Put>(pendings.size());
+		for (Pending p : pendings) {
+			puts.add(p.put);
+		}
+
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, HbaseMetrics.Op.COALESCED_PUT);
+		Map<Row, Throwable> failed = new IdentityHashMap<Row, Throwable>();
+		IOException error = null;
+		Table table = null;
+		try {
+			table = connection.getTable(TableName.valueOf(tableName));
+			table.put(puts);
+			stats.written(puts.size(), HbaseDaoImpl.heapSizeOf(puts));
+		} catch (RetriesExhaustedWithDetailsException e) {
+			HbaseDaoImpl.recordError(stats, e);
+			for (int i = 0; i < e.getNumExceptions(); i++) {
+				failed.put(e.getRow(i), e.getCause(i));
+			}
+		} catch (IOException e) {
+			stats.error();
+			logger.error("表:{} 合并写入失败！", tableName, e);
+			error = e;
+		} finally {
+			HbaseDaoImpl.closeConnect(table);
+			stats.record(startNanos);
+		}
+
+		for (Pending p : pendings) {
+			Throwable cause = null != error ? error : failed.get(p.put);
+			if (null != cause) {
+				p.future.completeExceptionally(cause);
+			} else {
+				p.future.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * 一个表的一批put，关闭时未执行的批次据此通知调用方
+	 */
+	private class WriteTask implements Runnable {
+
+		private final String		tableName;
+
+		private final List<Pending>	pendings;
+
+		WriteTask(String tableName, List<Pending> pendings) {
+			this.tableName = tableName;
+			this.pendings = pendings;
+		}
+
+		@Override
+		public void run() {
+			write(tableName, pendings);
+		}
+	}
+
+	/**
+	 * 一个待写入的put
+	 */
+	private static class Pending {
+
+		private final String					tableName;
+
+		private final Put						put;
+
+		private final CompletableFuture<Void>	future;
+
+		Pending(String tableName, Put put, CompletableFuture<Void> future) {
+			this.tableName = tableName;
+			this.put = put;
+			this.future = future;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Consistency;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ *
+ *
+ * @Filename HbaseReplicaReads.java
+ *
+ * @Description region副本读：启用的表get使用TIMELINE一致性，先发给主region，
+ *              超过hbase.client.primaryCallTimeout.get微秒未返回时客户端再向副本region发出对冲请求，
+ *              取先返回的结果；副本返回的结果Result.isStale()为true，可能落后于主region
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseReplicaReads {
+
+	/**
+	 * 主region未返回时发出对冲请求的等待时间(微秒)，单条get
+	 */
+	public static final String	GET_HEDGE_DELAY			= "hbase.client.primaryCallTimeout.get";
+
+	/**
+	 * 同上，批量get
+	 */
+	public static final String	MULTIGET_HEDGE_DELAY	= "hbase.client.primaryCallTimeout.multiget";
+
+	/**
+	 * 启用副本读的表
+	 */
+	private final Set<String>	tables					= ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param config 表名，逗号分隔
+	 */
+	public HbaseReplicaReads(String config) {
+		for (String tn : StringUtils.split(StringUtils.defaultString(config), ',')) {
+			if (StringUtils.isNotBlank(tn)) {
+				register(tn.trim());
+			}
+		}
+	}
+
+	/**
+	 * 启用表的副本读，表需要有多个region副本，否则与普通读相同
+	 * @param tableName
+	 */
+	public void register(String tableName) {
+		tables.add(tableName);
+	}
+
+	public boolean isEnabled(String tableName) {
+		return tables.contains(tableName);
+	}
+
+	/**
+	 * 启用副本读的表设置TIMELINE一致性
+	 * @param tableName
+	 * @param get
+	 * @return
+	 */
+	public Get apply(String tableName, Get get) {
+		if (tables.contains(tableName)) {
+			get.setConsistency(Consistency.TIMELINE);
+		}
+		return get;
+	}
+
+	/**
+	 * 统计由副本返回的结果数，即对冲请求先于主region返回的次数
+	 * @param stats
+	 * @param results
+	 */
+	public static void recordStale(HbaseOperationStats stats, Result... results) {
+		long stale = 0;
+		for (Result result : results) {
+			if (null != result && result.isStale()) {
+				stale++;
+			}
+		}
+		if (stale > 0) {
+			stats.stale(stale);
+		}
+	}
+
+	/**
+	 * 修改表的region副本数；1.x修改副本数需要先disable表，期间表不可读写，完成后恢复为enable
+	 * @param admin
+	 * @param tableName
+	 * @param replicas 1为不使用副本
+	 * @throws IOException
+	 */
+	public static void setRegionReplication(Admin admin, String tableName, int replicas)
+																						throws IOException {
+		if (replicas < 1) {
+			throw new IllegalArgumentException("副本数需大于0：" + replicas);
+		}
+		TableName tn = TableName.valueOf(tableName);
+		HTableDescriptor htd = admin.getTableDescriptor(tn);
+		if (htd.getRegionReplication() == replicas) {
+			return;
+		}
+		htd.setRegionReplication(replicas);
+
+		// 只恢复由这里disable的表，调用前已disable的表保持原样
+		boolean disabled = false;
+		if (admin.isTableEnabled(tn)) {
+			admin.disableTable(tn);
+			disabled = true;
+		}
+		try {
+			admin.modifyTable(tn, htd);
+		} finally {
+			if (disabled) {
+				admin.enableTable(tn);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.touna.dao.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Table;
+
+/**
+ *
+ *
+ * @Filename HbaseResultStream.java
+ *
+ * @Description 流式读取scan结果，按需从scanner拉取，读完或调用close时释放scanner和table
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseResultStream implements Iterator<Result>, Closeable {
+
+	private final Table							table;
+
+	private final ResultScanner					scanner;
+
+	/**
+	 * 已拉取未返回的下一行
+	 */
+	private Result								next;
+
+	private boolean								closed	= false;
+
+	/**
+	 * 指标，为空时不统计
+	 */
+	private final HbaseOperationStats			stats;
+
+	private final long							startNanos;
+
+	/**
+	 * 归并模式下的各桶stream，为空表示直接读scanner
+	 */
+	private final List<HbaseResultStream>		sources;
+
+	/**
+	 * 归并模式下按当前行排序的各桶stream，第一次hasNext时初始化
+	 */
+	private PriorityQueue<HbaseResultStream>	heap;
+
+	public HbaseResultStream(Table table, ResultScanner scanner) {
+		this(table, scanner, null);
+	}
+
+	/**
+	 * @param table
+	 * @param scanner
+	 * @param stats 统计读取行数字节数，close时记录从打开到关闭的耗时
+	 */
+	public HbaseResultStream(Table table, ResultScanner scanner, HbaseOperationStats stats) {
+		this.table = table;
+		this.scanner = scanner;
+		this.stats = stats;
+		this.startNanos = System.nanoTime();
+		this.sources = null;
+	}
+
+	/**
+	 * 归并加盐表各桶的stream，按原rowkey顺序返回去掉桶号的结果
+	 * @param sources 每个桶一个，按rowkey有序
+	 * @param stats
+	 */
+	HbaseResultStream(List<HbaseResultStream> sources, HbaseOperationStats stats) {
+		this.table = null;
+		this.scanner = null;
+		this.stats = stats;
+		this.startNanos = System.nanoTime();
+		this.sources = sources;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (null != next) {
+			return true;
+		}
+		if (closed) {
+			return false;
+		}
+		if (null != sources) {
+			return mergeNext();
+		}
+		try {
+			next = scanner.next();
+		} catch (IOException e) {
+			if (null != stats) {
+				stats.error();
+			}
+			close();
+			throw new RuntimeException("scan 读取数据失败！" + e.getMessage(), e);
+		}
+		if (null == next) {
+
+			// 读完自动释放
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Result next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Result result = next;
+		next = null;
+		if (null != stats) {
+			stats.read(result);
+		}
+		return result;
+	}
+
+	/**
+	 * 从当前行最小的桶取一行
+	 * @return
+	 */
+	private boolean mergeNext() {
+		try {
+			if (null == heap) {
+				heap = new PriorityQueue<HbaseResultStream>(Math.max(sources.size(), 1),
+					new Comparator<HbaseResultStream>() {
+						@Override
+						public int compare(HbaseResultStream a, HbaseResultStream b) {
+							return HbaseSalting.compareLogical(a.next.getRow(), b.next.getRow());
+						}
+					});
+				for (HbaseResultStream source : sources) {
+					if (source.hasNext()) {
+						heap.add(source);
+					}
+				}
+			}
+			HbaseResultStream source = heap.poll();
+			if (null == source) {
+				close();
+				return false;
+			}
+			next = HbaseSalting.unsalt(source.next());
+			if (source.hasNext()) {
+				heap.add(source);
+			}
+			return true;
+		} catch (RuntimeException e) {
+			if (null != stats) {
+				stats.error();
+			}
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 转成Stream，Stream关闭时释放scanner
+	 * @return
+	 */
+	public Stream<Result> stream() {
+		return StreamSupport.stream(
+			Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+			false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * 提前结束时调用，释放服务端scanner和table
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (null != sources) {
+			for (HbaseResultStream source : sources) {
+				source.close();
+			}
+		} else {
+			HbaseDaoImpl.closeConnect(scanner);
+			HbaseDaoImpl.closeConnect(table);
+		}
+		if (null != stats) {
+			stats.record(startNanos);
+		}
+	}
+}
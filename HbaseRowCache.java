@@ -0,0 +1,281 @@
+package com.touna.dao.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ *
+ *
+ * @Filename HbaseRowCache.java
+ *
+ * @Description getRow/getRows的本地行缓存：按表+rowkey+查询列缓存Result，按字节数LRU淘汰，
+ *              本进程写入时按行失效，其他进程的写入依赖ttl过期；
+ *              查询期间同一行有写入时不回填，其他行的写入不影响
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseRowCache {
+
+	/**
+	 * 查询全部列时的列key
+	 */
+	private static final String						ALL_COLUMNS			= "*";
+
+	/**
+	 * 最多记录的行失效数，超过后丢弃最早的记录
+	 */
+	private static final int						MAX_INVALIDATIONS	= 10000;
+
+	/**
+	 * 最大缓存字节数
+	 */
+	private final long								maxBytes;
+
+	/**
+	 * 过期时间(毫秒)
+	 */
+	private final long								ttlMs;
+
+	/**
+	 * 按访问顺序排列，key为 表名/rowkey
+	 */
+	private final LinkedHashMap<String, RowEntry>	rows				= new LinkedHashMap<String, RowEntry>(
+																				16, 0.75f, true);
+
+	/**
+	 * 当前缓存字节数
+	 */
+	private long									bytes				= 0;
+
+	/**
+	 * 失效序号，每次失效加1，查询前记录，回填时该行或该表在此之后有过失效则不回填，
+	 * 避免把写入前读到的旧数据放进缓存
+	 */
+	private long									sequence			= 0;
+
+	/**
+	 * 表名/rowkey -> 该行最后一次失效的序号，按失效顺序排列
+	 */
+	private final LinkedHashMap<String, Long>		invalidated			= new LinkedHashMap<String, Long>();
+
+	/**
+	 * 表名 -> 该表最后一次整表失效的序号
+	 */
+	private final Map<String, Long>					tables				= new HashMap<String, Long>();
+
+	/**
+	 * 已丢弃的行失效记录中最大的序号，早于它的查询无法判断是否读到旧数据，不回填
+	 */
+	private long									floor				= 0;
+
+	/**
+	 * @param maxBytes 最大缓存字节数
+	 * @param ttlMs 过期时间(毫秒)
+	 */
+	public HbaseRowCache(long maxBytes, long ttlMs) {
+		this.maxBytes = maxBytes;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * 查询列生成的key
+	 * @param columns
+	 * @return
+	 */
+	public static String columnsKey(List<String> columns) {
+		if (null == columns || columns.size() == 0) {
+			return ALL_COLUMNS;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String col : columns) {
+			sb.append(col).append(',');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 查询前调用，回填时传入
+	 * @return
+	 */
+	public synchronized long stamp() {
+		return sequence;
+	}
+
+	/**
+	 * 查询缓存
+	 * @param tableName
+	 * @param row
+	 * @param columnsKey
+	 * @return 未命中或已过期返回null
+	 */
+	public synchronized Result get(String tableName, String row, String columnsKey) {
+		String key = tableName + "/" + row;
+		RowEntry entry = rows.get(key);
+		if (null == entry) {
+			return null;
+		}
+		Cached cached = entry.results.get(columnsKey);
+		if (null == cached) {
+			return null;
+		}
+		if (System.currentTimeMillis() - cached.createTime > ttlMs) {
+			entry.results.remove(columnsKey);
+			entry.bytes -= cached.bytes;
+			bytes -= cached.bytes;
+			if (entry.results.isEmpty()) {
+				rows.remove(key);
+			}
+			return null;
+		}
+		return cached.result;
+	}
+
+	/**
+	 * 回填缓存
+	 * @param tableName
+	 * @param row
+	 * @param columnsKey
+	 * @param result
+	 * @param stamp 查询前调用stamp()的返回值
+	 */
+	public synchronized void put(String tableName, String row, String columnsKey, Result result,
+									long stamp) {
+		String key = tableName + "/" + row;
+		if (null == result || invalidatedSince(tableName, key, stamp)) {
+			return;
+		}
+		long size = sizeOf(result);
+		if (size > maxBytes) {
+			return;
+		}
+		RowEntry entry = rows.get(key);
+		if (null == entry) {
+			entry = new RowEntry();
+			rows.put(key, entry);
+		}
+		Cached old = entry.results.put(columnsKey, new Cached(result, size));
+		if (null != old) {
+			entry.bytes -= old.bytes;
+			bytes -= old.bytes;
+		}
+		entry.bytes += size;
+		bytes += size;
+
+		// 超过容量淘汰最久未访问的行
+		Iterator<RowEntry> it = rows.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			RowEntry eldest = it.next();
+			bytes -= eldest.bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * 行有写入，失效该行所有列组合的缓存
+	 * @param tableName
+	 * @param row
+	 */
+	public synchronized void invalidate(String tableName, String row) {
+		String key = tableName + "/" + row;
+
+		// 先删除再放入，保持按失效顺序排列
+		invalidated.remove(key);
+		invalidated.put(key, ++sequence);
+		if (invalidated.size() > MAX_INVALIDATIONS) {
+			Iterator<Long> it = invalidated.values().iterator();
+			floor = it.next();
+			it.remove();
+		}
+		RowEntry entry = rows.remove(key);
+		if (null != entry) {
+			bytes -= entry.bytes;
+		}
+	}
+
+	/**
+	 * 表被清空或删除，失效该表所有缓存
+	 * @param tableName
+	 */
+	public synchronized void invalidate(String tableName) {
+		tables.put(tableName, ++sequence);
+		String prefix = tableName + "/";
+		Iterator<Map.Entry<String, RowEntry>> it = rows.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, RowEntry> e = it.next();
+			if (e.getKey().startsWith(prefix)) {
+				bytes -= e.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 查询开始后该行或该表是否有过失效
+	 * @param tableName
+	 * @param key 表名/rowkey
+	 * @param stamp 查询前调用stamp()的返回值
+	 * @return
+	 */
+	private boolean invalidatedSince(String tableName, String key, long stamp) {
+		if (stamp < floor) {
+			return true;
+		}
+		Long row = invalidated.get(key);
+		if (null != row && row > stamp) {
+			return true;
+		}
+		Long table = tables.get(tableName);
+		return null != table && table > stamp;
+	}
+
+	/**
+	 * 估算Result占用的字节数
+	 * @param result
+	 * @return
+	 */
+	private static long sizeOf(Result result) {
+		long size = 64;
+		Cell[] cells = result.rawCells();
+		if (null != cells) {
+			for (Cell cell : cells) {
+				size += CellUtil.estimatedHeapSizeOf(cell);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 一行的缓存，按查询列区分
+	 */
+	private static class RowEntry {
+
+		private final Map<String, Cached>	results	= new HashMap<String, Cached>(4);
+
+		private long						bytes	= 0;
+	}
+
+	/**
+	 * 单个缓存结果
+	 */
+	private static class Cached {
+
+		private final Result	result;
+
+		private final long		bytes;
+
+		private final long		createTime	= System.currentTimeMillis();
+
+		Cached(Result result, long bytes) {
+			this.result = result;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.touna.dao.impl;
+
+/**
+ *
+ *
+ * @Filename HbaseRowMapper.java
+ *
+ * @Description 把一行映射成对象，传入的视图在每行之间复用，只在map调用期间有效
+ *
+ * @Version 1.0
+ *
+ */
+public interface HbaseRowMapper<T> {
+
+	/**
+	 * 映射一行
+	 * @param row
+	 * @return 为null时不加入结果
+	 */
+	T map(HbaseRowView row);
+}
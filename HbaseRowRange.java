@@ -0,0 +1,42 @@
+package com.touna.dao.impl;
+
+/**
+ *
+ *
+ * @Filename HbaseRowRange.java
+ *
+ * @Description 原rowkey范围[start, stop)，start为空从表头开始，stop为空到表尾；创建后不可变
+ *
+ * @Version 1.0
+ *
+ */
+public final class HbaseRowRange {
+
+	/**
+	 * 包含
+	 */
+	private final String	start;
+
+	/**
+	 * 不包含
+	 */
+	private final String	stop;
+
+	public HbaseRowRange(String start, String stop) {
+		this.start = start;
+		this.stop = stop;
+	}
+
+	public String getStart() {
+		return start;
+	}
+
+	public String getStop() {
+		return stop;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + start + ", " + stop + ")";
+	}
+}
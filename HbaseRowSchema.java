@@ -0,0 +1,145 @@
+package com.touna.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbaseRowSchema.java
+ *
+ * @Description 预编译的cf列映射：列名按声明顺序编号(slot)，内部按字节序排好，
+ *              与Result中同样按列名排序的cell归并定位，不再逐个cell拷贝列名比较；创建后不可变，可在线程间共享
+ *
+ * @Version 1.0
+ *
+ */
+public final class HbaseRowSchema {
+
+	/**
+	 * 列族
+	 */
+	private final byte[]		family;
+
+	/**
+	 * 按声明顺序的列名
+	 */
+	private final List<String>	qualifiers;
+
+	/**
+	 * 按字节序排序的列名
+	 */
+	private final byte[][]		sorted;
+
+	/**
+	 * 排序后的下标 -> slot
+	 */
+	private final int[]			slots;
+
+	private HbaseRowSchema(byte[] family, String[] qualifiers) {
+		this.family = family;
+		this.qualifiers = Collections.unmodifiableList(new ArrayList<String>(Arrays
+			.asList(qualifiers)));
+		Integer[] order = new Integer[qualifiers.length];
+		final byte[][] bytes = new byte[qualifiers.length][];
+		for (int i = 0; i < qualifiers.length; i++) {
+			order[i] = i;
+			bytes[i] = Bytes.toBytes(qualifiers[i]);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Bytes.compareTo(bytes[a], bytes[b]);
+			}
+		});
+		this.sorted = new byte[qualifiers.length][];
+		this.slots = new int[qualifiers.length];
+		for (int i = 0; i < order.length; i++) {
+			if (i > 0 && Bytes.equals(bytes[order[i]], sorted[i - 1])) {
+				throw new IllegalArgumentException("列重复：" + qualifiers[order[i]]);
+			}
+			sorted[i] = bytes[order[i]];
+			slots[i] = order[i];
+		}
+	}
+
+	/**
+	 * cf列族的列映射
+	 * @param qualifiers slot依次为0,1,2...
+	 * @return
+	 */
+	public static HbaseRowSchema of(String... qualifiers) {
+		return new HbaseRowSchema(Bytes.toBytes("cf"), qualifiers);
+	}
+
+	/**
+	 * 列的slot
+	 * @param qualifier
+	 * @return 不存在返回-1
+	 */
+	public int slot(String qualifier) {
+		return qualifiers.indexOf(qualifier);
+	}
+
+	public int size() {
+		return qualifiers.size();
+	}
+
+	public List<String> getQualifiers() {
+		return qualifiers;
+	}
+
+	/**
+	 * scan只读取映射的列
+	 * @param scan
+	 * @return
+	 */
+	public Scan addTo(Scan scan) {
+		for (byte[] q : sorted) {
+			scan.addColumn(family, q);
+		}
+		return scan;
+	}
+
+	public Get addTo(Get get) {
+		for (byte[] q : sorted) {
+			get.addColumn(family, q);
+		}
+		return get;
+	}
+
+	/**
+	 * 把一行按列名排序的cell放入slot，同一列只取第一个(最新)版本，不属于映射的cell忽略
+	 * @param cells 按KeyValue顺序排序
+	 * @param target 长度不小于size()，调用前清空
+	 */
+	void fill(Cell[] cells, Cell[] target) {
+		int j = 0;
+		for (Cell c : cells) {
+			if (!Bytes.equals(family, 0, family.length, c.getFamilyArray(), c.getFamilyOffset(),
+				c.getFamilyLength())) {
+				continue;
+			}
+			int cmp = -1;
+			while (j < sorted.length
+					&& (cmp = Bytes.compareTo(sorted[j], 0, sorted[j].length, c.getQualifierArray(),
+						c.getQualifierOffset(), c.getQualifierLength())) < 0) {
+				j++;
+			}
+			if (j == sorted.length) {
+				return;
+			}
+			if (cmp == 0 && null == target[slots[j]]) {
+				target[slots[j]] = c;
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.touna.dao.impl;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbaseRowView.java
+ *
+ * @Description 可复用的行视图：按HbaseRowSchema的slot直接从cell的底层数组偏移读取值，
+ *              数字按ASCII就地解析，不拷贝列名和值；reset后指向新的一行，
+ *              映射结束后不要保留视图或其中的cell，非线程安全
+ *
+ * @Version 1.0
+ *
+ */
+public final class HbaseRowView {
+
+	private static final byte[]		TRUE			= Bytes.toBytes("true");
+
+	private static final byte[]		ONE				= Bytes.toBytes("1");
+
+	/**
+	 * 小数就地解析的除数
+	 */
+	private static final double[]	POWERS_OF_TEN	= { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+			1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15	};
+
+	private final HbaseRowSchema	schema;
+
+	/**
+	 * slot -> 当前行该列的cell，没有该列为null
+	 */
+	private final Cell[]			cells;
+
+	/**
+	 * 当前行的rowkey所在cell
+	 */
+	private Cell					first;
+
+	/**
+	 * 当前行由region副本返回
+	 */
+	private boolean					stale;
+
+	public HbaseRowView(HbaseRowSchema schema) {
+		this.schema = schema;
+		this.cells = new Cell[schema.size()];
+	}
+
+	/**
+	 * 指向新的一行
+	 * @param result
+	 * @return 空行返回false
+	 */
+	public boolean reset(Result result) {
+		Arrays.fill(cells, null);
+		first = null;
+		stale = false;
+		if (null == result || result.isEmpty()) {
+			return false;
+		}
+		Cell[] raw = result.rawCells();
+		first = raw[0];
+		stale = result.isStale();
+		schema.fill(raw, cells);
+		return true;
+	}
+
+	/**
+	 * 当前行由region副本返回，可能落后于主region
+	 * @return
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	public HbaseRowSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * rowkey
+	 * @return
+	 */
+	public String rowKey() {
+		return Bytes.toString(first.getRowArray(), first.getRowOffset(), first.getRowLength());
+	}
+
+	/**
+	 * rowkey是否等于给定值，不解码
+	 * @param row
+	 * @return
+	 */
+	public boolean rowEquals(byte[] row) {
+		return Bytes.equals(row, 0, row.length, first.getRowArray(), first.getRowOffset(), first
+			.getRowLength());
+	}
+
+	public boolean has(int slot) {
+		return null != cells[slot];
+	}
+
+	/**
+	 * 当前行该列的cell，只在下一次reset之前有效
+	 * @param slot
+	 * @return
+	 */
+	public Cell cell(int slot) {
+		return cells[slot];
+	}
+
+	public long timestamp(int slot) {
+		return cells[slot].getTimestamp();
+	}
+
+	public int length(int slot) {
+		Cell c = cells[slot];
+		return null == c ? 0 : c.getValueLength();
+	}
+
+	/**
+	 * utf-8解码，没有该列返回null
+	 * @param slot
+	 * @return
+	 */
+	public String getString(int slot) {
+		Cell c = cells[slot];
+		return null == c ? null : Bytes.toString(c.getValueArray(), c.getValueOffset(), c
+			.getValueLength());
+	}
+
+	/**
+	 * 值是否等于给定字节，不解码
+	 * @param slot
+	 * @param value
+	 * @return
+	 */
+	public boolean valueEquals(int slot, byte[] value) {
+		Cell c = cells[slot];
+		return null != c
+				&& Bytes.equals(value, 0, value.length, c.getValueArray(), c.getValueOffset(), c
+					.getValueLength());
+	}
+
+	/**
+	 * 十进制整数字符串，没有该列或不是整数返回默认值
+	 * @param slot
+	 * @param defaultValue
+	 * @return
+	 */
+	public long getLong(int slot, long defaultValue) {
+		Cell c = cells[slot];
+		if (null == c || c.getValueLength() == 0) {
+			return defaultValue;
+		}
+		return HbaseStringLongColumnInterpreter.parseLong(c.getValueArray(), c.getValueOffset(), c
+			.getValueLength(), defaultValue);
+	}
+
+	public int getInt(int slot, int defaultValue) {
+		long v = getLong(slot, Long.MIN_VALUE);
+		if (v == Long.MIN_VALUE || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+			return defaultValue;
+		}
+		return (int) v;
+	}
+
+	/**
+	 * 十进制小数字符串；只有整数和小数部分时就地解析，带指数等其他格式交给Double.parseDouble
+	 * @param slot
+	 * @param defaultValue
+	 * @return
+	 */
+	public double getDouble(int slot, double defaultValue) {
+		Cell c = cells[slot];
+		if (null == c || c.getValueLength() == 0) {
+			return defaultValue;
+		}
+		byte[] b = c.getValueArray();
+		int i = c.getValueOffset();
+		int end = i + c.getValueLength();
+		boolean negative = b[i] == '-';
+		if (b[i] == '-' || b[i] == '+') {
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = -1;
+		for (; i < end; i++) {
+			int d = b[i] - '0';
+			if (d >= 0 && d <= 9) {
+				mantissa = mantissa * 10 + d;
+				digits++;
+				if (scale >= 0) {
+					scale++;
+				}
+			} else if (b[i] == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				break;
+			}
+		}
+
+		// 超过15位有效数字会丢精度，交给Double.parseDouble
+		if (i != end || digits == 0 || digits > 15) {
+			try {
+				return Double.parseDouble(getString(slot));
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+		double v = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+		return negative ? -v : v;
+	}
+
+	/**
+	 * "true"/"1"为true，其他为false
+	 * @param slot
+	 * @param defaultValue 没有该列时返回
+	 * @return
+	 */
+	public boolean getBoolean(int slot, boolean defaultValue) {
+		Cell c = cells[slot];
+		if (null == c) {
+			return defaultValue;
+		}
+		return valueEquals(slot, TRUE) || valueEquals(slot, ONE);
+	}
+}
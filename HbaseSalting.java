@@ -0,0 +1,367 @@
+package com.touna.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.ByteArrayComparable;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbaseSalting.java
+ *
+ * @Description rowkey加盐：对启用的表在rowkey前加1字节的hash桶号，把递增rowkey的写入打散到各桶的region，
+ *              读取时按桶还原，范围扫描每个桶一个scanner并按原rowkey归并排序。
+ *              调用方始终使用原rowkey，返回的Result中的rowkey也是原rowkey
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseSalting {
+
+	/**
+	 * 桶号占1字节，最多256个桶
+	 */
+	public static final int							MAX_BUCKETS	= 256;
+
+	/**
+	 * 表名 -> 桶数
+	 */
+	private final ConcurrentMap<String, Integer>	tables		= new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @param config 表名:桶数，逗号分隔，如 order:16,log:8
+	 */
+	public HbaseSalting(String config) {
+		for (String item : StringUtils.split(StringUtils.defaultString(config), ',')) {
+			String[] kv = StringUtils.split(item.trim(), ':');
+			if (kv.length == 2) {
+				register(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+			}
+		}
+	}
+
+	/**
+	 * 启用表的加盐，表中已有的数据不会被改写，需在写入数据前注册
+	 * @param tableName
+	 * @param buckets 2~256
+	 */
+	public void register(String tableName, int buckets) {
+		if (buckets < 2 || buckets > MAX_BUCKETS) {
+			throw new IllegalArgumentException("桶数需在2~" + MAX_BUCKETS + "之间：" + buckets);
+		}
+		tables.put(tableName, buckets);
+	}
+
+	/**
+	 * 表的桶数，未加盐返回0
+	 * @param tableName
+	 * @return
+	 */
+	public int buckets(String tableName) {
+		Integer buckets = tables.get(tableName);
+		return null == buckets ? 0 : buckets;
+	}
+
+	public boolean isSalted(String tableName) {
+		return tables.containsKey(tableName);
+	}
+
+	/**
+	 * rowkey所在的桶
+	 * @param row 原rowkey
+	 * @param buckets
+	 * @return
+	 */
+	public static byte bucket(byte[] row, int buckets) {
+		return (byte) ((Bytes.hashCode(row) & Integer.MAX_VALUE) % buckets);
+	}
+
+	/**
+	 * 按原rowkey(去掉桶号)比较加盐后的rowkey
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int compareLogical(byte[] a, byte[] b) {
+		return Bytes.compareTo(a, 1, a.length - 1, b, 1, b.length - 1);
+	}
+
+	/**
+	 * 原rowkey加上桶号
+	 * @param row
+	 * @param buckets
+	 * @return
+	 */
+	public static byte[] salt(byte[] row, int buckets) {
+		return prefix(bucket(row, buckets), row);
+	}
+
+	/**
+	 * 未加盐的表原样返回
+	 * @param tableName
+	 * @param row
+	 * @return
+	 */
+	public byte[] saltRow(String tableName, byte[] row) {
+		int buckets = buckets(tableName);
+		return buckets == 0 ? row : salt(row, buckets);
+	}
+
+	/**
+	 * 去掉桶号
+	 * @param row
+	 * @return
+	 */
+	public static byte[] unsalt(byte[] row) {
+		return Bytes.copy(row, 1, row.length - 1);
+	}
+
+	/**
+	 * put换成加盐后的rowkey，未加盐的表原样返回
+	 * @param tableName
+	 * @param put
+	 * @return
+	 */
+	public Put salt(String tableName, Put put) {
+		int buckets = buckets(tableName);
+		if (buckets == 0 || null == put) {
+			return put;
+		}
+		byte[] row = salt(put.getRow(), buckets);
+		Put salted = new Put(row);
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (Cell c : cells) {
+				salted.addColumn(CellUtil.cloneFamily(c), CellUtil.cloneQualifier(c), c
+					.getTimestamp(), CellUtil.cloneValue(c));
+			}
+		}
+		salted.setDurability(put.getDurability());
+		for (Map.Entry<String, byte[]> attr : put.getAttributesMap().entrySet()) {
+			salted.setAttribute(attr.getKey(), attr.getValue());
+		}
+		return salted;
+	}
+
+	/**
+	 * 批量put换成加盐后的rowkey，未加盐的表原样返回
+	 * @param tableName
+	 * @param puts
+	 * @return
+	 */
+	public List<Put> salt(String tableName, List<Put> puts) {
+		if (!isSalted(tableName) || null == puts) {
+			return puts;
+		}
+		List<Put> salted = new ArrayList<Put>(puts.size());
+		for (Put put : puts) {
+			salted.add(salt(tableName, put));
+		}
+		return salted;
+	}
+
+	/**
+	 * 结果中的rowkey去掉桶号，未加盐的表原样返回
+	 * @param tableName
+	 * @param result
+	 * @return
+	 */
+	public Result unsalt(String tableName, Result result) {
+		return isSalted(tableName) ? unsalt(result) : result;
+	}
+
+	public Result[] unsalt(String tableName, Result[] results) {
+		if (!isSalted(tableName) || null == results) {
+			return results;
+		}
+		Result[] unsalted = new Result[results.length];
+		for (int i = 0; i < results.length; i++) {
+			unsalted[i] = unsalt(results[i]);
+		}
+		return unsalted;
+	}
+
+	/**
+	 * 结果中的rowkey去掉桶号
+	 * @param result
+	 * @return
+	 */
+	public static Result unsalt(Result result) {
+		if (null == result || result.isEmpty()) {
+			return result;
+		}
+		byte[] row = unsalt(result.getRow());
+		Cell[] cells = result.rawCells();
+		List<Cell> unsalted = new ArrayList<Cell>(cells.length);
+		for (Cell c : cells) {
+			unsalted.add(new KeyValue(row, CellUtil.cloneFamily(c), CellUtil.cloneQualifier(c), c
+				.getTimestamp(), KeyValue.Type.codeToType(c.getTypeByte()), CellUtil.cloneValue(c)));
+		}
+		return Result.create(unsalted, result.getExists(), result.isStale());
+	}
+
+	/**
+	 * 把原rowkey上的scan拆成每个桶一个：起止rowkey加上桶号，
+	 * 比较rowkey的BinaryComparator/BinaryPrefixComparator RowFilter和PrefixFilter也加上桶号，
+	 * 其他比较rowkey的filter(如正则)看到的是加盐后的rowkey
+	 * @param scan 原rowkey上的scan，不会被修改
+	 * @param buckets
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Scan> bucketScans(Scan scan, int buckets) throws IOException {
+		List<Scan> scans = new ArrayList<Scan>(buckets);
+		byte[] start = scan.getStartRow();
+		byte[] stop = scan.getStopRow();
+		for (int b = 0; b < buckets; b++) {
+			byte bucket = (byte) b;
+			Scan s = new Scan(scan);
+			s.setStartRow(prefix(bucket, start));
+			if (stop.length != 0) {
+				s.setStopRow(prefix(bucket, stop));
+			} else if (b == MAX_BUCKETS - 1) {
+				s.setStopRow(new byte[0]);
+			} else {
+				s.setStopRow(new byte[] { (byte) (b + 1) });
+			}
+			if (null != scan.getFilter()) {
+				s.setFilter(rewrite(scan.getFilter(), bucket));
+			}
+			scans.add(s);
+		}
+		return scans;
+	}
+
+	/**
+	 * 按桶预分区的split，每个桶一个region
+	 * @param buckets
+	 * @return
+	 */
+	public static byte[][] splits(int buckets) {
+		byte[][] splits = new byte[buckets - 1][];
+		for (int b = 1; b < buckets; b++) {
+			splits[b - 1] = new byte[] { (byte) b };
+		}
+		return splits;
+	}
+
+	/**
+	 * 各桶的有序结果按原rowkey归并，并去掉桶号
+	 * @param buckets 每个桶按rowkey有序的结果
+	 * @param limit 最多返回的行数，小于0不限制
+	 * @return
+	 */
+	public static List<Result> merge(List<List<Result>> buckets, int limit) {
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(buckets.size(), 1));
+		int total = 0;
+		for (List<Result> list : buckets) {
+			total += list.size();
+			if (!list.isEmpty()) {
+				heap.add(new Cursor(list));
+			}
+		}
+		int max = limit < 0 ? total : Math.min(limit, total);
+		List<Result> merged = new ArrayList<Result>(max);
+		while (merged.size() < max && !heap.isEmpty()) {
+			Cursor c = heap.poll();
+			merged.add(unsalt(c.current()));
+			if (c.advance()) {
+				heap.add(c);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * filter中比较rowkey的部分加上桶号
+	 * @param filter
+	 * @param bucket
+	 * @return
+	 */
+	static Filter rewrite(Filter filter, byte bucket) {
+		if (filter instanceof FilterList) {
+			FilterList fl = (FilterList) filter;
+			FilterList rewritten = new FilterList(fl.getOperator());
+			for (Filter f : fl.getFilters()) {
+				rewritten.addFilter(rewrite(f, bucket));
+			}
+			return rewritten;
+		}
+		if (filter instanceof RowFilter) {
+			RowFilter rf = (RowFilter) filter;
+			ByteArrayComparable comparator = rf.getComparator();
+			if (comparator instanceof BinaryComparator) {
+				return new RowFilter(rf.getOperator(), new BinaryComparator(prefix(bucket,
+					comparator.getValue())));
+			}
+			if (comparator instanceof BinaryPrefixComparator) {
+				return new RowFilter(rf.getOperator(), new BinaryPrefixComparator(prefix(bucket,
+					comparator.getValue())));
+			}
+			return filter;
+		}
+		if (filter instanceof PrefixFilter) {
+			return new PrefixFilter(prefix(bucket, ((PrefixFilter) filter).getPrefix()));
+		}
+		return filter;
+	}
+
+	/**
+	 * rowkey前加桶号
+	 * @param bucket
+	 * @param row
+	 * @return
+	 */
+	static byte[] prefix(byte bucket, byte[] row) {
+		byte[] salted = new byte[row.length + 1];
+		salted[0] = bucket;
+		System.arraycopy(row, 0, salted, 1, row.length);
+		return salted;
+	}
+
+	/**
+	 * 归并时一个桶的读取位置
+	 */
+	private static class Cursor implements Comparable<Cursor> {
+
+		private final List<Result>	list;
+
+		private int					index	= 0;
+
+		Cursor(List<Result> list) {
+			this.list = list;
+		}
+
+		Result current() {
+			return list.get(index);
+		}
+
+		boolean advance() {
+			return ++index < list.size();
+		}
+
+		@Override
+		public int compareTo(Cursor o) {
+			return compareLogical(current().getRow(), o.current().getRow());
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.touna.dao.impl;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ *
+ *
+ * @Filename HbaseScanConsumer.java
+ *
+ * @Description 推送式scan回调，逐行推送结果，onNext返回false提前结束并释放scanner
+ *
+ * @Version 1.0
+ *
+ */
+public interface HbaseScanConsumer {
+
+	/**
+	 * 收到一行
+	 * @param result
+	 * @return false不再继续扫描
+	 */
+	boolean onNext(Result result);
+
+	/**
+	 * 扫描出错，之后不会再有回调
+	 * @param error
+	 */
+	void onError(Throwable error);
+
+	/**
+	 * 扫描结束(包括onNext返回false提前结束)
+	 */
+	void onComplete();
+}
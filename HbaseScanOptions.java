@@ -0,0 +1,92 @@
+package com.touna.dao.impl;
+
+import org.apache.hadoop.hbase.client.Scan;
+
+/**
+ *
+ *
+ * @Filename HbaseScanOptions.java
+ *
+ * @Description scan调优参数：scanner caching、batch、maxResultSize、是否缓存block，
+ *              小于1的参数不设置，使用hbase默认值
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseScanOptions {
+
+	/**
+	 * 每次rpc返回的行数
+	 */
+	private int		caching			= -1;
+
+	/**
+	 * 每个Result最多包含的列数，宽行拆成多个Result返回
+	 */
+	private int		batch			= -1;
+
+	/**
+	 * 每次rpc返回的最大字节数
+	 */
+	private long	maxResultSize	= -1;
+
+	/**
+	 * 是否缓存读到的block，大范围扫描建议关闭
+	 */
+	private boolean	cacheBlocks		= true;
+
+	public HbaseScanOptions caching(int caching) {
+		this.caching = caching;
+		return this;
+	}
+
+	public HbaseScanOptions batch(int batch) {
+		this.batch = batch;
+		return this;
+	}
+
+	public HbaseScanOptions maxResultSize(long maxResultSize) {
+		this.maxResultSize = maxResultSize;
+		return this;
+	}
+
+	public HbaseScanOptions cacheBlocks(boolean cacheBlocks) {
+		this.cacheBlocks = cacheBlocks;
+		return this;
+	}
+
+	public int getCaching() {
+		return caching;
+	}
+
+	public int getBatch() {
+		return batch;
+	}
+
+	public long getMaxResultSize() {
+		return maxResultSize;
+	}
+
+	public boolean isCacheBlocks() {
+		return cacheBlocks;
+	}
+
+	/**
+	 * 设置到scan上
+	 * @param scan
+	 * @return
+	 */
+	public Scan applyTo(Scan scan) {
+		if (caching > 0) {
+			scan.setCaching(caching);
+		}
+		if (batch > 0) {
+			scan.setBatch(batch);
+		}
+		if (maxResultSize > 0) {
+			scan.setMaxResultSize(maxResultSize);
+		}
+		scan.setCacheBlocks(cacheBlocks);
+		return scan;
+	}
+}
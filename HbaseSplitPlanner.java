@@ -0,0 +1,225 @@
+package com.touna.dao.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.RegionLoad;
+import org.apache.hadoop.hbase.ServerLoad;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.RandomRowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ *
+ *
+ * @Filename HbaseSplitPlanner.java
+ *
+ * @Description 按rowkey样本的分位数计算预分区split，样本可以来自已有表、本地文件或内存，
+ *              按目标region数或单region大小切分，使建表后各region数据量大致均衡
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseSplitPlanner {
+
+	/**
+	 * 默认最多保留的样本数
+	 */
+	public static final int	DEFAULT_MAX_SAMPLES	= 100000;
+
+	private HbaseSplitPlanner() {
+	}
+
+	/**
+	 * 从已有表抽样rowkey：服务端按chance随机选行，只返回rowkey，不缓存读到的block
+	 * @param connection
+	 * @param tableName
+	 * @param chance 每行被选中的概率，(0,1]
+	 * @param maxSamples 最多保留的样本数，超过时蓄水池抽样
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<byte[]> sampleTable(Connection connection, String tableName, float chance,
+											int maxSamples) throws IOException {
+		Scan scan = new Scan();
+		FilterList fl = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+		if (chance < 1) {
+			fl.addFilter(new RandomRowFilter(chance));
+		}
+		fl.addFilter(new FirstKeyOnlyFilter());
+		fl.addFilter(new KeyOnlyFilter());
+		scan.setFilter(fl);
+		scan.setCacheBlocks(false);
+		scan.setCaching(1000);
+
+		Reservoir reservoir = new Reservoir(maxSamples);
+		Table table = connection.getTable(TableName.valueOf(tableName));
+		ResultScanner scanner = null;
+		try {
+			scanner = table.getScanner(scan);
+			for (Result result : scanner) {
+				reservoir.add(result.getRow());
+			}
+		} finally {
+			HbaseDaoImpl.closeConnect(scanner);
+			HbaseDaoImpl.closeConnect(table);
+		}
+		return reservoir.samples;
+	}
+
+	/**
+	 * 从本地文件抽样rowkey，每行一个utf-8的rowkey，空行忽略
+	 * @param file
+	 * @param maxSamples
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<byte[]> sampleFile(File file, int maxSamples) throws IOException {
+		Reservoir reservoir = new Reservoir(maxSamples);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+			StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() != 0) {
+					reservoir.add(Bytes.toBytes(line));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return reservoir.samples;
+	}
+
+	/**
+	 * 从内存中的rowkey抽样
+	 * @param rowKeys
+	 * @param maxSamples
+	 * @return
+	 */
+	public static List<byte[]> sample(Collection<String> rowKeys, int maxSamples) {
+		Reservoir reservoir = new Reservoir(maxSamples);
+		for (String rowKey : rowKeys) {
+			if (null != rowKey && rowKey.length() != 0) {
+				reservoir.add(Bytes.toBytes(rowKey));
+			}
+		}
+		return reservoir.samples;
+	}
+
+	/**
+	 * 按目标region数取样本的分位点作为split
+	 * @param samples 不要求有序，不会被修改
+	 * @param numRegions
+	 * @return numRegions-1个split，样本中不同的key不够时会更少；样本为空或numRegions小于2时返回null(不预分区)
+	 */
+	public static byte[][] splitsByCount(List<byte[]> samples, int numRegions) {
+		if (null == samples || samples.isEmpty() || numRegions < 2) {
+			return null;
+		}
+		List<byte[]> sorted = new ArrayList<byte[]>(samples);
+		Collections.sort(sorted, Bytes.BYTES_COMPARATOR);
+
+		List<byte[]> splits = new ArrayList<byte[]>(numRegions - 1);
+		for (int i = 1; i < numRegions; i++) {
+			byte[] split = sorted.get((int) ((long) i * sorted.size() / numRegions));
+
+			// 重复key(热点key)只切一次，空key不能作为split
+			if (split.length == 0
+				|| (!splits.isEmpty() && Bytes.equals(splits.get(splits.size() - 1), split))) {
+				continue;
+			}
+			splits.add(split);
+		}
+		return splits.isEmpty() ? null : splits.toArray(new byte[splits.size()][]);
+	}
+
+	/**
+	 * 按单region目标大小计算region数再取分位点
+	 * @param samples
+	 * @param totalBytes 预计数据总量
+	 * @param regionSizeBytes 单region目标大小
+	 * @return
+	 */
+	public static byte[][] splitsBySize(List<byte[]> samples, long totalBytes, long regionSizeBytes) {
+		if (regionSizeBytes <= 0) {
+			return null;
+		}
+		long numRegions = (totalBytes + regionSizeBytes - 1) / regionSizeBytes;
+		return splitsByCount(samples, (int) Math.min(numRegions, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * 表在各regionserver上的storefile总大小
+	 * @param admin
+	 * @param tableName
+	 * @return 字节
+	 * @throws IOException
+	 */
+	public static long tableSizeBytes(Admin admin, String tableName) throws IOException {
+		TableName tn = TableName.valueOf(tableName);
+		ClusterStatus status = admin.getClusterStatus();
+		long mb = 0;
+		for (ServerName server : status.getServers()) {
+			ServerLoad load = status.getLoad(server);
+			for (RegionLoad region : load.getRegionsLoad().values()) {
+				if (tn.equals(HRegionInfo.getTable(region.getName()))) {
+					mb += region.getStorefileSizeMB();
+				}
+			}
+		}
+		return mb * 1024 * 1024;
+	}
+
+	/**
+	 * 蓄水池抽样，保证任意数量的输入下每个key被保留的概率相同
+	 */
+	private static class Reservoir {
+
+		private final int			max;
+
+		private final List<byte[]>	samples;
+
+		private final Random		random	= new Random();
+
+		private long				seen	= 0;
+
+		Reservoir(int max) {
+			this.max = max;
+			this.samples = new ArrayList<byte[]>(Math.min(max, 1024));
+		}
+
+		void add(byte[] key) {
+			seen++;
+			if (samples.size() < max) {
+				samples.add(key);
+				return;
+			}
+			long i = (long) (random.nextDouble() * seen);
+			if (i < max) {
+				samples.set((int) i, key);
+			}
+		}
+	}
+}
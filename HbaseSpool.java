@@ -0,0 +1,541 @@
+package com.touna.dao.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto.MutationType;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ *
+ * @Filename HbaseSpool.java
+ *
+ * @Description 写入失败或暂缓的mutation的本地spool：追加写到内存映射的分段文件，
+ *              后台线程按写入顺序重放到hbase，同一表同一rowkey的mutation不会在同一批里，保证按rowkey有序；
+ *              重放进度记在checkpoint文件，重放完的分段删除。进程崩溃不丢已写入的数据，
+ *              机器掉电需要开启fsync；重放至少一次，未指定时间戳的put重放多次会产生多个相同值的版本
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseSpool {
+
+	/**
+	 * 日志
+	 */
+	private static final Logger				logger			= LoggerFactory
+																.getLogger(HbaseSpool.class);
+
+	/**
+	 * 记录头：长度 + crc32
+	 */
+	private static final int				HEADER			= 8;
+
+	/**
+	 * 每批重放的最多记录数
+	 */
+	private static final int				REPLAY_BATCH	= 1000;
+
+	private static final String				PREFIX			= "segment-";
+
+	/**
+	 * spool目录
+	 */
+	private final File						dir;
+
+	/**
+	 * 分段文件大小
+	 */
+	private final int						segmentBytes;
+
+	/**
+	 * 每次追加后是否刷盘
+	 */
+	private final boolean					fsync;
+
+	/**
+	 * hbase连接
+	 */
+	private final Connection				connection;
+
+	/**
+	 * 重放线程
+	 */
+	private final ScheduledExecutorService	replayer;
+
+	/**
+	 * 重放进度
+	 */
+	private final FileChannel				checkpoint;
+
+	/**
+	 * 正在写入的分段，写入由this同步
+	 */
+	private long							writeSeq;
+
+	private FileChannel						writeChannel;
+
+	private MappedByteBuffer				writeBuffer;
+
+	/**
+	 * 重放位置，只在重放线程中读写
+	 */
+	private long							readSeq;
+
+	private int								readPos;
+
+	/**
+	 * 本批第一条记录的位置，重放失败时回到这里
+	 */
+	private int								batchPos;
+
+	private MappedByteBuffer				readBuffer;
+
+	/**
+	 * 已重放到的位置，由this同步
+	 */
+	private long							replayedSeq;
+
+	private int								replayedPos;
+
+	private volatile boolean				closed			= false;
+
+	/**
+	 * @param connection
+	 * @param dir spool目录，不存在时创建
+	 * @param segmentBytes 分段文件大小
+	 * @param fsync 每次追加后是否刷盘
+	 * @param replayIntervalMs 重放间隔，重放失败后在下一个间隔重试
+	 * @throws IOException
+	 */
+	public HbaseSpool(Connection connection, String dir, int segmentBytes, boolean fsync,
+						long replayIntervalMs) throws IOException {
+		this.connection = connection;
+		this.dir = new File(dir);
+		this.segmentBytes = segmentBytes;
+		this.fsync = fsync;
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("创建spool目录失败：" + dir);
+		}
+
+		// 上次留下的分段从checkpoint继续重放，新数据写到新分段
+		long[] seqs = segments();
+		this.checkpoint = new RandomAccessFile(new File(this.dir, "checkpoint"), "rw").getChannel();
+		ByteBuffer cp = ByteBuffer.allocate(12);
+		if (checkpoint.read(cp, 0) == 12) {
+			cp.flip();
+			readSeq = cp.getLong();
+			readPos = cp.getInt();
+		}
+		if (seqs.length == 0) {
+			writeSeq = readSeq + 1;
+			readSeq = writeSeq;
+			readPos = 0;
+		} else {
+			writeSeq = seqs[seqs.length - 1] + 1;
+			if (readSeq < seqs[0] || readSeq > seqs[seqs.length - 1]) {
+				readSeq = seqs[0];
+				readPos = 0;
+			}
+			logger.info("spool:{} 有{}个未重放完的分段", dir, seqs.length);
+		}
+		replayedSeq = readSeq;
+		replayedPos = readPos;
+		openSegment(writeSeq, segmentBytes);
+
+		this.replayer = Executors.newSingleThreadScheduledExecutor(new HbaseThreadFactory(
+			"hbase-spool-replay"));
+		this.replayer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				replay();
+			}
+		}, replayIntervalMs, replayIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 入队时给未指定时间戳的put和delete打上客户端时间戳：重放时不再由服务端按重放时刻打时间戳，
+	 * 先失败后重放的旧数据不会覆盖期间直接写入hbase的同一rowkey的新数据。
+	 * 只删除最新一个版本的delete(Delete.addColumn不带时间戳)保持原样，它的语义依赖服务端当时的最新版本
+	 * @param mutations 会被修改
+	 * @param ts
+	 * @throws IOException
+	 */
+	static void stamp(List<? extends Mutation> mutations, long ts) throws IOException {
+		byte[] tsBytes = Bytes.toBytes(ts);
+		for (Mutation m : mutations) {
+
+			// 整行删除没有cell，服务端按delete的时间戳生成删除标记
+			if (m instanceof Delete && m.getTimeStamp() == HConstants.LATEST_TIMESTAMP
+				&& m.getFamilyCellMap().isEmpty()) {
+				((Delete) m).setTimestamp(ts);
+				continue;
+			}
+			for (List<Cell> cells : m.getFamilyCellMap().values()) {
+				for (Cell c : cells) {
+					if (c.getTimestamp() == HConstants.LATEST_TIMESTAMP
+						&& c.getTypeByte() != KeyValue.Type.Delete.getCode()) {
+						CellUtil.updateLatestStamp(c, tsBytes, 0);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 追加mutation，只支持put和delete(重放需要幂等)
+	 * @param tableName
+	 * @param mutations
+	 * @throws IOException
+	 */
+	public void append(String tableName, List<? extends Mutation> mutations) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>(mutations.size());
+		for (Mutation m : mutations) {
+			records.add(encode(tableName, m));
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("spool已关闭：" + dir);
+			}
+			for (byte[] record : records) {
+				if (writeBuffer.remaining() < HEADER + record.length) {
+					roll(HEADER + record.length);
+				}
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				int pos = writeBuffer.position();
+
+				// 先写内容再写长度，崩溃时不会读到半条记录
+				writeBuffer.putInt(pos + 4, (int) crc.getValue());
+				writeBuffer.position(pos + HEADER);
+				writeBuffer.put(record);
+				writeBuffer.putInt(pos, record.length);
+			}
+			if (fsync) {
+				writeBuffer.force();
+			}
+		}
+	}
+
+	/**
+	 * 是否有未重放的数据
+	 * @return
+	 */
+	public synchronized boolean hasBacklog() {
+		return replayedSeq < writeSeq || replayedPos < writeBuffer.position();
+	}
+
+	/**
+	 * 停止重放并关闭文件，未重放的数据在下次启动时继续重放
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		replayer.shutdown();
+		try {
+			replayer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				writeBuffer.force();
+				writeChannel.close();
+				checkpoint.close();
+			} catch (IOException e) {
+				logger.error("关闭spool失败！", e);
+			}
+		}
+	}
+
+	/**
+	 * 按写入顺序重放，失败时保留进度等下一次重试
+	 */
+	void replay() {
+		while (!closed) {
+			List<Record> records = new ArrayList<Record>(REPLAY_BATCH);
+			try {
+				if (!read(records)) {
+					return;
+				}
+				apply(records);
+				saveCheckpoint();
+			} catch (Exception e) {
+				if (!records.isEmpty()) {
+					readPos = batchPos;
+				}
+				logger.warn("spool:{} 重放失败，稍后重试：{}", dir, e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 从重放位置读出一批记录，一批只来自一个分段；读完的分段在没有未重放的记录时删除
+	 * @param records
+	 * @return 是否读到
+	 * @throws IOException
+	 */
+	private boolean read(List<Record> records) throws IOException {
+		while (records.size() < REPLAY_BATCH) {
+			long limitSeq;
+			int limitPos;
+			synchronized (this) {
+				limitSeq = writeSeq;
+				limitPos = writeBuffer.position();
+			}
+			if (readSeq == limitSeq && readPos >= limitPos) {
+				break;
+			}
+			if (null == readBuffer) {
+				readBuffer = map(readSeq);
+			}
+
+			// 长度为0或放不下记录头表示分段结束，长度或校验不对是崩溃时写了一半的记录，之后的内容不可信
+			int len = readPos + HEADER <= readBuffer.capacity() ? readBuffer.getInt(readPos) : 0;
+			boolean end = len <= 0 || readPos + HEADER + len > readBuffer.capacity();
+			byte[] record = null;
+			if (!end) {
+				record = new byte[len];
+				ByteBuffer dup = readBuffer.duplicate();
+				dup.position(readPos + HEADER);
+				dup.get(record);
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != readBuffer.getInt(readPos + 4)) {
+					logger.error("spool分段:{} 位置:{} 校验失败，跳过该分段剩余内容", readSeq, readPos);
+					end = true;
+				}
+			}
+			if (end) {
+				if (readSeq == limitSeq || !records.isEmpty()) {
+					break;
+				}
+				nextSegment();
+				continue;
+			}
+			Record r;
+			try {
+				r = decode(record);
+			} catch (IOException e) {
+				logger.error("spool分段:{} 位置:{} 无法解析，跳过该记录", readSeq, readPos, e);
+				readPos += HEADER + len;
+				continue;
+			}
+			if (records.isEmpty()) {
+				batchPos = readPos;
+			}
+			readPos += HEADER + len;
+			records.add(r);
+		}
+		return !records.isEmpty();
+	}
+
+	/**
+	 * 写入hbase：同一表同一rowkey在一批中只出现一次，再次出现时先写入之前的
+	 * @param records
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void apply(List<Record> records) throws IOException, InterruptedException {
+		Map<String, List<Mutation>> batches = new LinkedHashMap<String, List<Mutation>>();
+		Map<String, Set<byte[]>> rows = new LinkedHashMap<String, Set<byte[]>>();
+		for (Record r : records) {
+			Set<byte[]> tableRows = rows.get(r.tableName);
+			if (null == tableRows) {
+				tableRows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+				rows.put(r.tableName, tableRows);
+				batches.put(r.tableName, new ArrayList<Mutation>());
+			}
+			if (!tableRows.add(r.mutation.getRow())) {
+				flush(batches);
+				for (Set<byte[]> s : rows.values()) {
+					s.clear();
+				}
+				tableRows.add(r.mutation.getRow());
+			}
+			batches.get(r.tableName).add(r.mutation);
+		}
+		flush(batches);
+	}
+
+	private void flush(Map<String, List<Mutation>> batches) throws IOException,
+																InterruptedException {
+		for (Map.Entry<String, List<Mutation>> batch : batches.entrySet()) {
+			List<Mutation> list = batch.getValue();
+			if (list.isEmpty()) {
+				continue;
+			}
+			Table table = connection.getTable(TableName.valueOf(batch.getKey()));
+			try {
+				table.batch(list, new Object[list.size()]);
+			} finally {
+				HbaseDaoImpl.closeConnect(table);
+			}
+			HbaseMetrics.stats(batch.getKey(), HbaseMetrics.Op.SPOOL_REPLAY).written(list.size(),
+				HbaseDaoImpl.heapSizeOf(list));
+			list.clear();
+		}
+	}
+
+	/**
+	 * 当前分段已重放完，转到下一个分段并删除当前分段
+	 * @throws IOException
+	 */
+	private void nextSegment() throws IOException {
+		long done = readSeq;
+		readSeq++;
+		readPos = 0;
+		readBuffer = null;
+		saveCheckpoint();
+		if (!segmentFile(done).delete()) {
+			logger.warn("删除spool分段失败：{}", segmentFile(done));
+		}
+	}
+
+	private void saveCheckpoint() throws IOException {
+		ByteBuffer cp = ByteBuffer.allocate(12);
+		cp.putLong(readSeq).putInt(readPos).flip();
+		checkpoint.write(cp, 0);
+		checkpoint.force(false);
+		synchronized (this) {
+			replayedSeq = readSeq;
+			replayedPos = readPos;
+		}
+	}
+
+	/**
+	 * 换到新分段，记录超过分段大小时新分段按记录大小分配
+	 * @param minBytes
+	 * @throws IOException
+	 */
+	private void roll(int minBytes) throws IOException {
+		writeBuffer.force();
+		writeChannel.close();
+		openSegment(writeSeq + 1, Math.max(segmentBytes, minBytes));
+	}
+
+	private void openSegment(long seq, int size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(seq), "rw");
+		writeChannel = file.getChannel();
+		writeBuffer = writeChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		writeSeq = seq;
+	}
+
+	private MappedByteBuffer map(long seq) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(seq), "r");
+		try {
+			return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+	}
+
+	private File segmentFile(long seq) {
+		return new File(dir, PREFIX + String.format("%020d", seq));
+	}
+
+	/**
+	 * 目录中已有的分段序号，升序
+	 * @return
+	 */
+	private long[] segments() {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.startsWith(PREFIX);
+			}
+		});
+		long[] seqs = new long[null == names ? 0 : names.length];
+		for (int i = 0; i < seqs.length; i++) {
+			seqs[i] = Long.parseLong(names[i].substring(PREFIX.length()));
+		}
+		Arrays.sort(seqs);
+		return seqs;
+	}
+
+	/**
+	 * 记录内容：表名长度(short) + 表名 + MutationProto
+	 * @param tableName
+	 * @param m
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] encode(String tableName, Mutation m) throws IOException {
+		MutationType type;
+		if (m instanceof Put) {
+			type = MutationType.PUT;
+		} else if (m instanceof Delete) {
+			type = MutationType.DELETE;
+		} else {
+			throw new IOException("spool只支持put和delete：" + m.getClass().getName());
+		}
+		byte[] table = tableName.getBytes(StandardCharsets.UTF_8);
+		byte[] proto = ProtobufUtil.toMutation(type, m).toByteArray();
+		ByteBuffer buf = ByteBuffer.allocate(2 + table.length + proto.length);
+		buf.putShort((short) table.length).put(table).put(proto);
+		return buf.array();
+	}
+
+	private static Record decode(byte[] record) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		byte[] table = new byte[buf.getShort()];
+		buf.get(table);
+		MutationProto proto = MutationProto.parseFrom(Arrays.copyOfRange(record, buf.position(),
+			record.length));
+		Mutation m = proto.getMutateType() == MutationType.PUT ? ProtobufUtil.toPut(proto)
+			: ProtobufUtil.toDelete(proto);
+		return new Record(new String(table, StandardCharsets.UTF_8), m);
+	}
+
+	/**
+	 * 一条spool记录
+	 */
+	private static class Record {
+
+		private final String	tableName;
+
+		private final Mutation	mutation;
+
+		Record(String tableName, Mutation mutation) {
+			this.tableName = tableName;
+			this.mutation = mutation;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.touna.dao.impl;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.coprocessor.LongColumnInterpreter;
+
+/**
+ *
+ *
+ * @Filename HbaseStringLongColumnInterpreter.java
+ *
+ * @Description 列值按十进制字符串解析为long的聚合解释器，直接从cell的value偏移解析，不拷贝value，
+ *              非数字的值不参与聚合；在regionserver上由AggregateImplementation按类名加载，
+ *              需要部署到regionserver的classpath
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseStringLongColumnInterpreter extends LongColumnInterpreter {
+
+	@Override
+	public Long getValue(byte[] colFamily, byte[] colQualifier, Cell kv) {
+		if (kv == null || kv.getValueLength() == 0) {
+			return null;
+		}
+		byte[] bytes = kv.getValueArray();
+		int offset = kv.getValueOffset();
+		int length = kv.getValueLength();
+		long v = parseLong(bytes, offset, length, 0);
+
+		// 返回0时再用另一个默认值解析一次，两次都返回默认值说明不是整数
+		if (v == 0 && parseLong(bytes, offset, length, 1) == 1) {
+			return null;
+		}
+		return v;
+	}
+
+	/**
+	 * 解析十进制整数，允许前导符号，非数字或溢出返回默认值；HbaseRowView也使用这个实现
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param defaultValue
+	 * @return
+	 */
+	static long parseLong(byte[] bytes, int offset, int length, long defaultValue) {
+		int i = offset;
+		int end = offset + length;
+		boolean negative = false;
+		if (bytes[i] == '-' || bytes[i] == '+') {
+			negative = bytes[i] == '-';
+			if (++i == end) {
+				return defaultValue;
+			}
+		}
+
+		// 按负数累加，Long.MIN_VALUE也能表示
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long result = 0;
+		for (; i < end; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9 || result < (limit + digit) / 10) {
+				return defaultValue;
+			}
+			result = result * 10 - digit;
+		}
+		return negative ? result : -result;
+	}
+}
@@ -0,0 +1,40 @@
+package com.touna.dao.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ *
+ * @Filename HbaseThreadFactory.java
+ *
+ * @Description hbase后台线程工厂，统一线程命名，默认守护线程
+ *
+ * @Version 1.0
+ *
+ */
+public class HbaseThreadFactory implements ThreadFactory {
+
+	/**
+	 * 线程名前缀
+	 */
+	private final String		prefix;
+
+	/**
+	 * 线程序号
+	 */
+	private final AtomicInteger	index	= new AtomicInteger(0);
+
+	public HbaseThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, prefix + "-" + index.incrementAndGet());
+
+		// 后台线程不阻止jvm退出
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -3,16 +3,36 @@ package com.touna.dao.impl;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
@@ -20,30 +40,37 @@ import org.apache.hadoop.hbase.NamespaceDescriptor;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.BufferedMutator;
-import org.apache.hadoop.hbase.client.BufferedMutatorParams;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
 import org.apache.hadoop.hbase.filter.RowFilter;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.io.compress.Compression.Algorithm;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.touna.bean.HBasePageModel;
 import com.touna.bean.HbaseCreateCF;
 import com.touna.dao.HbaseDao;
+import com.touna.dao.impl.HbaseMetrics.Op;
 
 /**
  * 
@@ -74,6 +101,8 @@ public class HbaseDaoImpl implements HbaseDao {
 	
 	private static final String		CF			= "cf";
 	
+	private static final byte[]		CF_BYTES	= Bytes.toBytes(CF);
+	
 	/**
 	 * hbase操作对象
 	 */
@@ -89,11 +118,116 @@ public class HbaseDaoImpl implements HbaseDao {
 	 */
 	private static Connection		connection	= null;
 	
+	/**
+	 * hbase.properties配置
+	 */
+	private static Properties		properties	= new Properties();
+	
+	/**
+	 * 异步写入使用的共享mutator
+	 */
+	private static HbaseMutatorManager	mutatorManager;
+	
+	/**
+	 * 异步写入失败数据的本地spool，为空表示不启用
+	 */
+	private static HbaseSpool			spool;
+	
+	/**
+	 * 并行scan线程池
+	 */
+	private static ExecutorService		scanExecutor;
+	
+	/**
+	 * 扇出查询的执行器，虚拟线程或线程池，带全局和每张表的并发上限
+	 */
+	private static HbaseExecution		execution;
+	
+	/**
+	 * 服务端聚合
+	 */
+	private static HbaseAggregator		aggregator;
+	
+	/**
+	 * 大批量get按regionserver分块并发执行
+	 */
+	private static HbaseMultiGet		multiGet;
+	
+	/**
+	 * 批量查询各前缀的最新数据
+	 */
+	private static HbaseLatestRows		latestRows;
+	
+	/**
+	 * 分页起始rowkey索引，为空表示不启用
+	 */
+	private static HbasePageIndexCache	pageIndexCache;
+	
+	/**
+	 * getRow/getRows行缓存，为空表示不启用
+	 */
+	private static HbaseRowCache		rowCache;
+	
+	/**
+	 * addData单条put合并，为空表示不启用
+	 */
+	private static HbasePutCoalescer	putCoalescer;
+	
+	/**
+	 * 合并写入时调用方等待的最长时间(毫秒)
+	 */
+	private static long					coalesceTimeoutMs;
+	
+	/**
+	 * 大批量写入走hfile bulk load，为空表示不启用
+	 */
+	private static HbaseBulkLoader		bulkLoader;
+	
+	/**
+	 * rowkey加盐的表，未配置的表不受影响
+	 */
+	private static HbaseSalting			salting		= new HbaseSalting(null);
+	
+	/**
+	 * cf列值的二级索引，未配置的表不受影响
+	 */
+	private static HbaseIndexManager	indexes		= new HbaseIndexManager(null, salting, CF, null);
+	
+	/**
+	 * 使用region副本读的表，未配置的表只读主region
+	 */
+	private static HbaseReplicaReads	replicas	= new HbaseReplicaReads(null);
+	
+	/**
+	 * 索引写入多久之后才允许查询时清理，避免删掉先于数据写入的新索引
+	 */
+	private static long					indexGraceMs	= 30000;
+	
+	/**
+	 * 预热完成标志，预热结束(无论成功失败)后countDown
+	 */
+	private static final CountDownLatch	warmLatch	= new CountDownLatch(1);
+	
+	/**
+	 * 启动预热是否全部成功，预热结束前为false
+	 */
+	private static volatile boolean		warmSucceeded;
+	
+	/**
+	 * 最近一次预热成功的region数
+	 */
+	private static volatile int			warmedRegions;
+	
+	/**
+	 * 最近一次预热失败的region数，获取region失败的表整表计1个
+	 */
+	private static volatile int			failedWarmRegions;
+	
 	/**
 	 * 初始化hbaseAdmin
 	 */
 	static {
-		Properties pro = new Properties();
+		Properties pro = properties;
 		String path = System.getProperty("user.dir") + "/conf/resource/hbase.properties";
 		InputStream fis = null;
 		try {
@@ -102,18 +236,368 @@ public class HbaseDaoImpl implements HbaseDao {
 			fis = HbaseDaoImpl.class.getResourceAsStream("/resource/hbase.properties");
 		}
 		try {
-			pro.load(fis);
+			if (null != fis) {
+				pro.load(fis);
+			}
+			
+			// hbase.开头的系统属性覆盖配置文件，便于压测、测试环境指定集群和参数
+			for (String name : System.getProperties().stringPropertyNames()) {
+				if (name.startsWith("hbase.")) {
+					pro.setProperty(name, System.getProperty(name));
+				}
+			}
 			String HBASE_ZK_CONNECT = pro.getProperty("hbase.zookeeper.quorum");
 			conf = HBaseConfiguration.create();
-			conf.set("hbase.zookeeper.property.clientPort", "2181");
+			conf.set("hbase.zookeeper.property.clientPort",
+				pro.getProperty("hbase.zookeeper.property.clientPort", "2181"));
 			conf.set("hbase.zookeeper.quorum", HBASE_ZK_CONNECT);
+			
+			// 副本读的对冲延迟(微秒)：主region超过该时间未返回时向副本发请求，未配置使用hbase-site的值
+			String hedgeDelay = pro.getProperty("hbase.replica.hedge.delay.us");
+			if (StringUtils.isNotBlank(hedgeDelay)) {
+				conf.set(HbaseReplicaReads.GET_HEDGE_DELAY, hedgeDelay.trim());
+				conf.set(HbaseReplicaReads.MULTIGET_HEDGE_DELAY, hedgeDelay.trim());
+			}
 			connection = ConnectionFactory.createConnection(conf);
 			hBaseAdmin = connection.getAdmin();
+			
+			// 加盐的表，表名:桶数，逗号分隔
+			salting = new HbaseSalting(pro.getProperty("hbase.salted.tables"));
+			
+			// 二级索引，表名:列|列，逗号分隔
+			indexes = new HbaseIndexManager(connection, salting, CF, pro
+				.getProperty("hbase.index.tables"));
+			
+			// 副本读，表名逗号分隔
+			replicas = new HbaseReplicaReads(pro.getProperty("hbase.replica.read.tables"));
+			indexGraceMs = Long.parseLong(pro.getProperty("hbase.index.repair.grace.ms",
+				"30000"));
+			
+			// 异步写入：待写入数据达到批次大小(最大flush.size字节，按flush耗时自适应)或每隔flush.interval.ms毫秒flush一次；
+			// 待写入数据超过max.pending.bytes时按overflow.policy(BLOCK/FAIL_FAST/SHED)处理
+			long flushSize = Long.parseLong(pro.getProperty("hbase.mutator.flush.size", String
+				.valueOf(5 * 1024 * 1024)));
+			mutatorManager = new HbaseMutatorManager(connection, flushSize, Long.parseLong(pro
+				.getProperty("hbase.mutator.flush.interval.ms", "100")), Integer.parseInt(pro
+				.getProperty("hbase.mutator.flush.threads", "2")), Long.parseLong(pro.getProperty(
+				"hbase.mutator.max.pending.bytes", String.valueOf(flushSize * 16))),
+				HbaseMutatorManager.OverflowPolicy.valueOf(pro.getProperty(
+					"hbase.mutator.overflow.policy", "BLOCK")), Long.parseLong(pro.getProperty(
+					"hbase.mutator.block.timeout.ms", "10000")), Long.parseLong(pro.getProperty(
+					"hbase.mutator.target.latency.ms", "1000")));
+			
+			// 写入失败的数据转存本地spool，dir为空不启用；defer为true(默认)时spool未重放完之前新写入也进spool
+			String spoolDir = pro.getProperty("hbase.spool.dir", "");
+			if (spoolDir.length() != 0) {
+				spool = new HbaseSpool(connection, spoolDir, Integer.parseInt(pro.getProperty(
+					"hbase.spool.segment.bytes", String.valueOf(64 * 1024 * 1024))), Boolean
+					.parseBoolean(pro.getProperty("hbase.spool.fsync", "false")), Long.parseLong(pro
+					.getProperty("hbase.spool.replay.interval.ms", "1000")));
+				mutatorManager.setSpool(spool, Boolean.parseBoolean(pro.getProperty(
+					"hbase.spool.defer", "true")));
+			}
+			
+			// 并行scan线程数
+			int scanThreads = Integer.parseInt(pro.getProperty("hbase.scan.parallelism", "8"));
+			ThreadPoolExecutor scanPool = new ThreadPoolExecutor(scanThreads, scanThreads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new HbaseThreadFactory(
+					"hbase-scan"));
+			scanPool.allowCoreThreadTimeOut(true);
+			scanExecutor = scanPool;
+			aggregator = new HbaseAggregator(connection, conf, salting, scanExecutor);
+			
+			// 超过chunk.size的getRows按regionserver分块，每次调用最多concurrency块同时执行
+			multiGet = new HbaseMultiGet(connection, salting, replicas, scanExecutor, Integer
+				.parseInt(pro.getProperty("hbase.multiget.chunk.size", "1000")), Integer
+				.parseInt(pro.getProperty("hbase.multiget.concurrency", "4")));
+			
+			// 扇出查询：virtual为true且jdk21及以上使用虚拟线程，否则最多max.concurrency个线程；
+			// 全局最多max.concurrency、每张表最多table.max.concurrency个查询同时执行，等待许可超过acquire.timeout.ms失败
+			execution = new HbaseExecution(Boolean.parseBoolean(pro.getProperty(
+				"hbase.execution.virtual", "true")), Integer.parseInt(pro.getProperty(
+				"hbase.execution.max.concurrency", "256")), Integer.parseInt(pro.getProperty(
+				"hbase.execution.table.max.concurrency", "64")), Long.parseLong(pro.getProperty(
+				"hbase.execution.acquire.timeout.ms", "10000")));
+			
+			// 批量查询最新数据时每次调用同时执行的反向scan数
+			latestRows = new HbaseLatestRows(connection, salting, scanExecutor, Integer
+				.parseInt(pro.getProperty("hbase.latest.concurrency", "8")));
+			
+			// 分页起始rowkey索引，max.entries为每张表缓存的filter组合数，小于1不启用(默认)；
+			// 其他进程写入表后ttl内跳页可能错位，确认可以接受时再开启
+			int pageIndexEntries = Integer.parseInt(pro.getProperty("hbase.page.index.max.entries",
+				"0"));
+			if (pageIndexEntries > 0) {
+				pageIndexCache = new HbasePageIndexCache(pageIndexEntries, Long.parseLong(pro
+					.getProperty("hbase.page.index.ttl.ms", "60000")));
+			}
+			
+			// 行缓存，max.bytes小于1不启用
+			long rowCacheBytes = Long.parseLong(pro.getProperty("hbase.row.cache.max.bytes", "0"));
+			if (rowCacheBytes > 0) {
+				rowCache = new HbaseRowCache(rowCacheBytes, Long.parseLong(pro.getProperty(
+					"hbase.row.cache.ttl.ms", "5000")));
+			}
+			
+			// 单条put合并，时间窗口(微秒)小于1不启用
+			long coalesceWindow = Long.parseLong(pro.getProperty("hbase.put.coalesce.window.us",
+				"0"));
+			if (coalesceWindow > 0) {
+				putCoalescer = new HbasePutCoalescer(connection, coalesceWindow,
+					Integer.parseInt(pro.getProperty("hbase.put.coalesce.max.batch", "500")),
+					Integer.parseInt(pro.getProperty("hbase.put.coalesce.threads", "4")));
+				
+				// 未配置时与hbase客户端的操作超时一致
+				coalesceTimeoutMs = Long.parseLong(pro.getProperty("hbase.put.coalesce.timeout.ms",
+					String.valueOf(conf.getLong(HConstants.HBASE_CLIENT_OPERATION_TIMEOUT,
+						HConstants.DEFAULT_HBASE_CLIENT_OPERATION_TIMEOUT))));
+			}
+			
+			// 达到threshold.rows行的批量写入走bulk load，小于1不启用；
+			// staging.dir需在hdfs上，不带hdfs://前缀时按hbase.rootdir或fs.defaultFS补全，落在本地文件系统时不启用
+			int bulkThreshold = Integer.parseInt(pro.getProperty("hbase.bulk.threshold.rows", "0"));
+			if (bulkThreshold > 0) {
+				try {
+					bulkLoader = new HbaseBulkLoader(connection, conf, pro.getProperty(
+						"hbase.bulk.staging.dir", "/tmp/hbase-dao-bulk"), bulkThreshold);
+				} catch (IOException e) {
+					logger.error("bulk load未启用！", e);
+				}
+			}
+			
+			// 启动预热：后台定位配置表的所有region，可选对每个region发一次探测读
+			final List<String> warmTables = new ArrayList<String>();
+			for (String tn : StringUtils.split(pro.getProperty("hbase.prewarm.tables", ""), ',')) {
+				if (StringUtils.isNotBlank(tn)) {
+					warmTables.add(tn.trim());
+				}
+			}
+			final boolean warmProbe = Boolean.parseBoolean(pro.getProperty("hbase.prewarm.probe",
+				"false"));
+			final int warmThreads = Integer.parseInt(pro.getProperty("hbase.prewarm.threads", "8"));
+			new HbaseThreadFactory("hbase-prewarm").newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						warmSucceeded = prewarm(warmTables, warmProbe, warmThreads);
+					} finally {
+						warmLatch.countDown();
+					}
+				}
+			}).start();
+			
+			// 定时把指标输出到日志，小于1不启用，jmx始终可用
+			long metricsLogInterval = Long.parseLong(pro.getProperty(
+				"hbase.metrics.log.interval.ms", "0"));
+			if (metricsLogInterval > 0) {
+				HbaseMetrics.addReporter(new HbaseMetrics.LogReporter(), metricsLogInterval);
+			}
+			
+			// jvm退出前写完异步队列中的数据
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					shutdown();
+				}
+			}, "hbase-dao-shutdown"));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * 读取hbase.properties中的配置
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	static String getProperty(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue);
+	}
+	
+	/**
+	 * 关闭异步写入并写完剩余数据，之后关闭hbase连接
+	 */
+	public static synchronized void shutdown() {
+		if (null != bulkLoader) {
+			bulkLoader.close();
+		}
+		if (null != putCoalescer) {
+			putCoalescer.close();
+		}
+		if (null != mutatorManager) {
+			mutatorManager.close();
+		}
+		if (null != spool) {
+			spool.close();
+		}
+		if (null != scanExecutor) {
+			scanExecutor.shutdownNow();
+		}
+		if (null != aggregator) {
+			aggregator.close();
+		}
+		if (null != execution) {
+			execution.close();
+		}
+		closeConnect(hBaseAdmin);
+		if (null != connection && !connection.isClosed()) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				logger.error("closeConnection failure !", e);
+			}
+		}
+	}
+	
+	/**
+	 * 启动预热是否完成且全部成功，服务可据此决定是否开始接收流量；
+	 * 有region预热失败时一直为false，可用isWarmFinished和预热的region数自行判断
+	 * @return
+	 */
+	public static boolean isReady() {
+		return warmLatch.getCount() == 0 && warmSucceeded;
+	}
+	
+	/**
+	 * 启动预热是否已结束，无论成功失败
+	 * @return
+	 */
+	public static boolean isWarmFinished() {
+		return warmLatch.getCount() == 0;
+	}
+	
+	/**
+	 * 等待启动预热完成
+	 * @param timeout
+	 * @param unit
+	 * @return 超时或有region预热失败返回false
+	 * @throws InterruptedException
+	 */
+	public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+		return warmLatch.await(timeout, unit) && warmSucceeded;
+	}
+	
+	/**
+	 * 最近一次预热成功的region数
+	 * @return
+	 */
+	public static int getWarmedRegions() {
+		return warmedRegions;
+	}
+	
+	/**
+	 * 最近一次预热失败的region数，获取region失败的表整表计1个
+	 * @return
+	 */
+	public static int getFailedWarmRegions() {
+		return failedWarmRegions;
+	}
+	
+	/**
+	 * 预热：并行定位表的所有region写入连接的region缓存，probe为true时对每个region发一次exists探测，
+	 * 同时建立到各regionserver的连接。单张表失败只记录日志，计入失败数
+	 * @param tableNames
+	 * @param probe
+	 * @param threads
+	 * @return 全部表、全部region都预热成功返回true
+	 */
+	public static boolean prewarm(List<String> tableNames, final boolean probe, int threads) {
+		if (null == tableNames || tableNames.isEmpty()) {
+			return true;
+		}
+		int warmed = 0;
+		int failed = 0;
+		long currentTime = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new HbaseThreadFactory(
+			"hbase-prewarm-worker"));
+		try {
+			
+			// 先按表拿到所有region的startKey
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (final String tn : tableNames) {
+				final byte[][] startKeys;
+				RegionLocator locator = null;
+				try {
+					locator = connection.getRegionLocator(TableName.valueOf(tn));
+					startKeys = locator.getStartKeys();
+				} catch (IOException e) {
+					logger.error("预热表:{}获取region失败！", tn, e);
+					failed++;
+					continue;
+				} finally {
+					if (null != locator) {
+						try {
+							locator.close();
+						} catch (IOException e) {
+							logger.error("closeRegionLocator failure !", e);
+						}
+					}
+				}
+				
+				// 每个region一个任务并行定位
+				for (final byte[] startKey : startKeys) {
+					futures.add(pool.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() throws Exception {
+							warmRegion(tn, startKey, probe);
+							return 1;
+						}
+					}));
+				}
+			}
+			
+			for (Future<Integer> future : futures) {
+				try {
+					warmed += future.get();
+				} catch (ExecutionException e) {
+					failed++;
+					logger.error("预热region失败！", e.getCause());
+				}
+			}
+			logger.info("预热完成，region数:{}，成功:{}，失败:{}，耗时:{}", futures.size(), warmed,
+				failed, (System.currentTimeMillis() - currentTime));
+		} catch (InterruptedException e) {
+			
+			// 被中断时预热未完成，不能算作成功
+			failed++;
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+			warmedRegions = warmed;
+			failedWarmRegions = failed;
+		}
+		return failed == 0;
+	}
+	
+	/**
+	 * 定位单个region，可选发一次探测读
+	 * @param tablename
+	 * @param startKey
+	 * @param probe
+	 * @throws IOException
+	 */
+	private static void warmRegion(String tablename, byte[] startKey, boolean probe)
+																					throws IOException {
+		TableName tn = TableName.valueOf(tablename);
+		RegionLocator locator = connection.getRegionLocator(tn);
+		try {
+			locator.getRegionLocation(startKey);
+		} finally {
+			locator.close();
+		}
+		if (probe) {
+			Table table = connection.getTable(tn);
+			try {
+				
+				// 第一个region的startKey为空，用最小的非空rowkey代替
+				table.exists(new Get(startKey.length == 0 ? new byte[] { 0 } : startKey));
+			} finally {
+				closeConnect(table);
+			}
+		}
+	}
+	
 	private HbaseDaoImpl() {
 	}
 	
@@ -150,6 +634,7 @@ public class HbaseDaoImpl implements HbaseDao {
 				
 				// 清空表
 				hBaseAdmin.truncateTable(tableName, false);
+				onTableWrite(tn);
 				
 				logger.info("表名为:{}执行了truncate操作！", tableName.getNameAsString());
 			} else {
@@ -350,99 +835,350 @@ public class HbaseDaoImpl implements HbaseDao {
 	}
 	
 	/**
-	 * 异步批量写入数据
-	 * 
+	 * 默认snappy压缩建表，按rowkey样本的分位点预分区，使各region数据量均衡
 	 * @param tableName
-	 * @param puts
+	 * @param cfs
+	 * @param samples rowkey样本，可由HbaseSplitPlanner从已有表、文件或内存抽样
+	 * @param numRegions
+	 * @param isDelete
+	 * @param timeToLive 小于1为不限制
 	 * @throws Exception
 	 */
-	public void addDataBatchAsyn(String tableName, List<Put> puts) throws Exception {
-		long currentTime = System.currentTimeMillis();
-		
-		// 创建监听器
-		final BufferedMutator.ExceptionListener listener = new BufferedMutator.ExceptionListener() {
-			@Override
-			public void onException(RetriesExhaustedWithDetailsException e, BufferedMutator mutator) {
-				for (int i = 0; i < e.getNumExceptions(); i++) {
-					logger.error("写入失败： " + e.getRow(i) + "！");
-				}
-			}
-		};
-		
-		// 设置表的缓存参数
-		BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(tableName))
-			.listener(listener);
-		params.writeBufferSize(5 * 1024 * 1024);
-		
-		// 操作类获取
-		final BufferedMutator mutator = connection.getBufferedMutator(params);
-		try {
-			
-			// 添加
-			mutator.mutate(puts);
-			
-			// 提交
-			mutator.flush();
-		} finally {
-			
-			// 关闭连接
-			closeConnect(mutator);
-		}
-		logger.info("addDataBatchAsyn执行时间:{}", (System.currentTimeMillis() - currentTime));
+	public void createTableBySNAPPY(String tableName, String[] cfs, List<byte[]> samples,
+									int numRegions, boolean isDelete, int timeToLive)
+																						throws Exception {
+		createTableBySNAPPY(tableName, cfs, HbaseSplitPlanner.splitsByCount(samples, numRegions),
+			isDelete, timeToLive);
 	}
 	
 	/**
-	 * 同步批量添加数据
+	 * 抽样已有表的rowkey计算split，用于按已有表的数据分布建新表
+	 * @param sourceTable
+	 * @param numRegions
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] planSplits(String sourceTable, int numRegions) throws Exception {
+		return HbaseSplitPlanner.splitsByCount(sampleTable(sourceTable), numRegions);
+	}
+	
+	/**
+	 * 抽样已有表的rowkey，按已有表的大小和单region目标大小计算split
+	 * @param sourceTable
+	 * @param regionSizeBytes 单region目标大小
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] planSplitsBySize(String sourceTable, long regionSizeBytes) throws Exception {
+		return HbaseSplitPlanner.splitsBySize(sampleTable(sourceTable), HbaseSplitPlanner
+			.tableSizeBytes(hBaseAdmin, sourceTable), regionSizeBytes);
+	}
+	
+	/**
+	 * 按hbase.split.sample.chance、hbase.split.sample.max抽样表的rowkey
+	 * @param tableName
+	 * @return
+	 * @throws IOException
+	 */
+	private List<byte[]> sampleTable(String tableName) throws IOException {
+		return HbaseSplitPlanner.sampleTable(connection, tableName, Float.parseFloat(getProperty(
+			"hbase.split.sample.chance", "0.01")), Integer.parseInt(getProperty(
+			"hbase.split.sample.max", String.valueOf(HbaseSplitPlanner.DEFAULT_MAX_SAMPLES))));
+	}
+	
+	/**
+	 * 批量写入数据，不经过wal和memstore：排序后按region写hfile再bulk load，
+	 * 适合夜间回刷等大批量写入，数据不会进入wal，也不会被replication同步
 	 * 
 	 * @param tablename
 	 * @param puts
-	 * @return
 	 * @throws Exception
 	 */
-	public void addDataBatch(String tablename, List<Put> puts) throws Exception {
-		long currentTime = System.currentTimeMillis();
-		
-		// 获取htable操作对象
-		HTable htable = (HTable) connection.getTable(TableName.valueOf(tablename));
-		// 这里设置了false,setWriteBufferSize方法才能生效
-		htable.setAutoFlushTo(false);
-		htable.setWriteBufferSize(5 * 1024 * 1024);
+	public void addDataBatchBulk(String tablename, List<Put> puts) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.BULK_LOAD);
+		HbaseBulkLoader loader = bulkLoader;
+		if (null == loader) {
+			loader = new HbaseBulkLoader(connection, conf, getProperty("hbase.bulk.staging.dir",
+				"/tmp/hbase-dao-bulk"), 0);
+		}
 		try {
 			
-			// 添加
-			htable.put(puts);
-			
-			// 执行
-			htable.flushCommits();
+			// 索引也走bulk load，先于数据加载
+			for (Map.Entry<String, List<Put>> index : indexes.indexPuts(tablename, puts).entrySet()) {
+				loader.load(index.getKey(), index.getValue());
+			}
+			loader.load(tablename, salting.salt(tablename, puts));
+			stats.written(puts.size(), heapSizeOf(puts));
 		} catch (IOException e) {
-			htable.flushCommits();
-			logger.error("addDataBatch 插入数据失败：exception ", e.getMessage());
-			throw new RuntimeException("addDataBatch hbase 插入失败！" + e.getMessage());
+			recordError(stats, e);
+			logger.error("addDataBatchBulk 插入数据失败：exception ", e);
+			throw new RuntimeException("addDataBatchBulk hbase 插入失败！" + e.getMessage());
 		} finally {
-			// 关闭连接
-			closeConnect(htable);
+			if (loader != bulkLoader) {
+				loader.close();
+			}
+			
+			// 行数很多，整表失效
+			onTableWrite(tablename);
+			stats.record(startNanos);
 		}
-		
-		logger.info("addDataBatch执行时间:{}", (System.currentTimeMillis() - currentTime));
 	}
 	
 	/**
-	 * 同步添加数据
+	 * 在后台bulk load，返回的future在加载完成后完成
 	 * 
-	 * @param tablename
+	 * @param tableName
 	 * @param puts
 	 * @return
-	 * @throws Exception
 	 */
-	public void addData(String tablename, Put put) throws Exception {
-		long currentTime = System.currentTimeMillis();
-		
-		// 获取htable操作对象
-		HTable htable = (HTable) connection.getTable(TableName.valueOf(tablename));
+	private CompletableFuture<Void> addDataBatchBulkAsyn(final String tableName,
+															List<Put> batch) {
+		
+		// 复制一份，调用方可以继续复用自己的list
+		final List<Put> puts = new ArrayList<Put>(batch);
+		final long startNanos = System.nanoTime();
+		final HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.BULK_LOAD);
+		
+		// 单线程加载，索引先于数据加载
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<String, List<Put>> index : indexes.indexPuts(tableName, puts).entrySet()) {
+			futures.add(bulkLoader.loadAsyn(index.getKey(), index.getValue()));
+		}
+		futures.add(bulkLoader.loadAsyn(tableName, salting.salt(tableName, puts)));
+		CompletableFuture<Void> future = allOf(futures);
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable e) {
+				if (null != e) {
+					recordError(stats, e);
+				} else {
+					stats.written(puts.size(), heapSizeOf(puts));
+				}
+				onTableWrite(tableName);
+				stats.record(startNanos);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * 异步批量写入数据，入队后返回，由共享mutator按大小或时间间隔flush；待写入数据已满时按配置阻塞或失败
+	 * 
+	 * @param tableName
+	 * @param puts
+	 * @throws Exception
+	 */
+	public void addDataBatchAsyn(String tableName, List<Put> puts) throws Exception {
+		addDataBatchAsynFuture(tableName, puts);
+	}
+	
+	/**
+	 * 异步批量写入数据，返回的future在数据写入hbase后完成，写入失败则异常完成
+	 * 
+	 * @param tableName
+	 * @param puts
+	 * @return
+	 */
+	public CompletableFuture<Void> addDataBatchAsynFuture(final String tableName, List<Put> puts) {
+		if (null != bulkLoader && bulkLoader.accept(puts.size())) {
+			return addDataBatchBulkAsyn(tableName, puts);
+		}
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.ADD_DATA_BATCH_ASYN);
+		final List<String> rows = rowsOf(puts);
+		onRowsWrite(tableName, rows);
+		CompletableFuture<Void> future = mutateIndexed(tableName, puts);
+		
+		// 只统计入队耗时，写入hbase的耗时和失败由asynFlush统计
+		stats.written(puts.size(), heapSizeOf(puts));
+		stats.record(startNanos);
+		
+		// 写入hbase后再失效一次，避免flush前读到的旧数据被缓存
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable e) {
+				onRowsWrite(tableName, rows);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * 异步写入单条数据，启用put合并时走合并队列，否则走共享mutator，写入hbase后future完成
+	 * 
+	 * @param tablename
+	 * @param put
+	 * @return
+	 */
+	public CompletableFuture<Void> addDataAsynFuture(final String tablename, Put put) {
+		if (null == putCoalescer) {
+			return addDataBatchAsynFuture(tablename, Collections.singletonList(put));
+		}
+		final List<String> rows = Collections.singletonList(Bytes.toString(put.getRow()));
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<String, List<Put>> index : indexes.indexPuts(tablename,
+			Collections.singletonList(put)).entrySet()) {
+			futures.add(mutatorManager.mutate(index.getKey(), index.getValue()));
+		}
+		futures.add(putCoalescer.put(tablename, salting.salt(tablename, put)));
+		CompletableFuture<Void> future = allOf(futures);
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable e) {
+				onRowsWrite(tablename, rows);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * 索引和数据一起入队共享mutator，都写入hbase后future完成；
+	 * 索引表和数据表分别flush，不保证先后，查询索引时回表校验
+	 * 
+	 * @param tableName
+	 * @param puts
+	 * @return
+	 */
+	private CompletableFuture<Void> mutateIndexed(String tableName, List<Put> puts) {
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<String, List<Put>> index : indexes.indexPuts(tableName, puts).entrySet()) {
+			futures.add(mutatorManager.mutate(index.getKey(), index.getValue()));
+		}
+		futures.add(mutatorManager.mutate(tableName, salting.salt(tableName, puts)));
+		return allOf(futures);
+	}
+	
+	/**
+	 * 全部完成后完成，任一异常则异常完成
+	 * @param futures
+	 * @return
+	 */
+	private static CompletableFuture<Void> allOf(List<CompletableFuture<Void>> futures) {
+		if (futures.size() == 1) {
+			return futures.get(0);
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+	
+	/**
+	 * 异步删除多行数据，走共享mutator，删除生效后future完成；
+	 * 建了索引的表与同步删除一样先读出行的索引列当前值，索引的delete和数据一起入队，
+	 * 读取失败则异常完成
+	 * 
+	 * @param tablename
+	 * @param rows
+	 * @return
+	 */
+	public CompletableFuture<Void> deleteAsynFuture(final String tablename, final List<String> rows) {
+		List<Delete> list = new ArrayList<Delete>(rows.size());
+		for (String row : rows) {
+			list.add(new Delete(salting.saltRow(tablename, Bytes.toBytes(row))));
+		}
+		Map<String, List<Delete>> indexDeletes;
+		try {
+			indexDeletes = indexes.indexDeletes(tablename, rows);
+		} catch (IOException e) {
+			logger.error("deleteAsyn 读取索引列失败：exception ", e.getMessage());
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		onRowsWrite(tablename, rows);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<String, List<Delete>> index : indexDeletes.entrySet()) {
+			futures.add(mutatorManager.mutate(index.getKey(), index.getValue()));
+		}
+		futures.add(mutatorManager.mutate(tablename, list));
+		CompletableFuture<Void> future = allOf(futures);
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable e) {
+				onRowsWrite(tablename, rows);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * 同步flush指定表已入队的异步写入数据
+	 * 
+	 * @param tableName
+	 */
+	public void flushAsyn(String tableName) {
+		mutatorManager.flush(tableName);
+	}
+	
+	/**
+	 * 同步批量添加数据
+	 * 
+	 * @param tablename
+	 * @param puts
+	 * @return
+	 * @throws Exception
+	 */
+	public void addDataBatch(String tablename, List<Put> puts) throws Exception {
+		if (null != bulkLoader && bulkLoader.accept(puts.size())) {
+			addDataBatchBulk(tablename, puts);
+			return;
+		}
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.ADD_DATA_BATCH);
+		
+		// 获取htable操作对象
+		HTable htable = (HTable) connection.getTable(TableName.valueOf(tablename));
+		// 这里设置了false,setWriteBufferSize方法才能生效
+		htable.setAutoFlushTo(false);
+		htable.setWriteBufferSize(5 * 1024 * 1024);
+		try {
+			
+			// 先写索引，数据写失败只会留下查询时清理的多余索引
+			indexes.index(tablename, puts);
+			
+			// 添加
+			htable.put(salting.salt(tablename, puts));
+			
+			// 执行
+			htable.flushCommits();
+			stats.written(puts.size(), heapSizeOf(puts));
+		} catch (IOException e) {
+			recordError(stats, e);
+			htable.flushCommits();
+			logger.error("addDataBatch 插入数据失败：exception ", e.getMessage());
+			throw new RuntimeException("addDataBatch hbase 插入失败！" + e.getMessage());
+		} finally {
+			// 关闭连接
+			closeConnect(htable);
+			onRowsWrite(tablename, rowsOf(puts));
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 同步添加数据
+	 * 
+	 * @param tablename
+	 * @param puts
+	 * @return
+	 * @throws Exception
+	 */
+	public void addData(String tablename, Put put) throws Exception {
+		if (null != putCoalescer && null != put) {
+			addDataCoalesced(tablename, put);
+			return;
+		}
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.ADD_DATA);
+		
+		// 获取htable操作对象
+		HTable htable = (HTable) connection.getTable(TableName.valueOf(tablename));
 		
 		try {
-			htable.put(put);
+			indexes.index(tablename, Collections.singletonList(put));
+			htable.put(salting.salt(tablename, put));
+			stats.written(1, put.heapSize());
 		} catch (Exception e) {
+			recordError(stats, e);
 			logger.error("addData 插入数据失败：exception ", e.getMessage());
 			//			insertExp(put, tablename, e.getMessage());
 			throw new RuntimeException("addData hbase 插入失败！" + e.getMessage());
@@ -450,9 +1186,43 @@ public class HbaseDaoImpl implements HbaseDao {
 			
 			// 关闭连接
 			closeConnect(htable);
+			onRowsWrite(tablename, null == put ? null : Collections.singletonList(Bytes
+				.toString(put.getRow())));
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 同步添加数据，与其他线程的put合并成批量写入，等待本条写入完成
+	 * 
+	 * @param tablename
+	 * @param put
+	 * @throws Exception
+	 */
+	private void addDataCoalesced(String tablename, Put put) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.ADD_DATA);
+		try {
+			indexes.index(tablename, Collections.singletonList(put));
+			putCoalescer.put(tablename, salting.salt(tablename, put)).get(coalesceTimeoutMs,
+				TimeUnit.MILLISECONDS);
+			stats.written(1, put.heapSize());
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("addData 插入索引失败：exception ", e.getMessage());
+			throw new RuntimeException("addData hbase 插入失败！" + e.getMessage());
+		} catch (ExecutionException e) {
+			recordError(stats, e.getCause());
+			logger.error("addData 插入数据失败：exception ", e.getCause().getMessage());
+			throw new RuntimeException("addData hbase 插入失败！" + e.getCause().getMessage());
+		} catch (TimeoutException e) {
+			recordError(stats, e);
+			logger.error("addData 等待合并写入超时：{}ms", coalesceTimeoutMs);
+			throw new RuntimeException("addData hbase 等待写入超时，写入结果未知！");
+		} finally {
+			onRowsWrite(tablename, Collections.singletonList(Bytes.toString(put.getRow())));
+			stats.record(startNanos);
 		}
-		
-		logger.info("addData执行时间:{}", (System.currentTimeMillis() - currentTime));
 	}
 	
 	/**
@@ -463,18 +1233,26 @@ public class HbaseDaoImpl implements HbaseDao {
 	 * @throws IOException
 	 */
 	public void delete(String tablename, String row) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.DELETE);
+		
 		// 获取htable操作对象
 		Table table = connection.getTable(TableName.valueOf(tablename));
 		
 		if (table != null) {
 			try {
 				
+				// 删除行当前值的索引
+				indexes.unindex(tablename, Collections.singletonList(row));
+				
 				// 创建删除对象
-				Delete d = new Delete(row.getBytes());
+				Delete d = new Delete(salting.saltRow(tablename, Bytes.toBytes(row)));
 				
 				// 执行删除操作
 				table.delete(d);
+				stats.written(1, 0);
 			} catch (IOException e) {
+				recordError(stats, e);
 				logger.error("delete单条数据 删除数据失败：exception ", e.getMessage());
 				throw new RuntimeException("delete单条数据 删除数据失败!" + e.getMessage());
 				
@@ -482,6 +1260,8 @@ public class HbaseDaoImpl implements HbaseDao {
 				
 				// 关闭连接
 				closeConnect(table);
+				onRowsWrite(tablename, Collections.singletonList(row));
+				stats.record(startNanos);
 			}
 		}
 	}
@@ -494,6 +1274,8 @@ public class HbaseDaoImpl implements HbaseDao {
 	 * @throws IOException
 	 */
 	public void delete(String tablename, List<String> rows) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.DELETE);
 		
 		// 获取htable操作对象
 		Table table = connection.getTable(TableName.valueOf(tablename));
@@ -505,23 +1287,30 @@ public class HbaseDaoImpl implements HbaseDao {
 				for (String row : rows) {
 					
 					// 创建删除对象
-					Delete d = new Delete(row.getBytes());
+					Delete d = new Delete(salting.saltRow(tablename, Bytes.toBytes(row)));
 					
 					// 添加到删除对象List中
 					list.add(d);
 				}
 				if (list.size() > 0) {
 					
+					// 删除行当前值的索引
+					indexes.unindex(tablename, rows);
+					
 					// 执行删除操作
 					table.delete(list);
+					stats.written(list.size(), 0);
 				}
 			} catch (IOException e) {
+				recordError(stats, e);
 				logger.error("delete多条数据  删除数据失败：exception ", e.getMessage());
 				throw new RuntimeException("delete多条数据  hbase 删除数据失败！" + e.getMessage());
 			} finally {
 				
 				// 关闭连接
 				closeConnect(table);
+				onRowsWrite(tablename, rows);
+				stats.record(startNanos);
 			}
 		}
 	}
@@ -536,27 +1325,59 @@ public class HbaseDaoImpl implements HbaseDao {
 	 * @see com.touna.dao.HbaseDao#getRow(java.lang.String, java.lang.String, java.util.List)
 	 */
 	public Result getRow(String tablename, String row, List<String> columns) throws Exception {
+		return getRow(HbasePreparedQuery.of(tablename, columns), row);
+	}
+	
+	/**
+	 * 按预编译的查询模板获取单条数据
+	 * @param query
+	 * @param row
+	 * @return
+	 * @throws Exception
+	 */
+	public Result getRow(HbasePreparedQuery query, String row) throws Exception {
+		String tablename = query.getTableName();
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.GET_ROW);
+		
+		// 先查行缓存，带filter的模板不使用行缓存
+		String columnsKey = null == rowCache ? null : query.columnsKey();
+		long stamp = 0;
+		if (null != columnsKey) {
+			Result cached = rowCache.get(tablename, row, columnsKey);
+			if (null != cached) {
+				stats.read(cached);
+				stats.record(startNanos);
+				return cached;
+			}
+			stamp = rowCache.stamp();
+		}
 		
 		// 获取htable操作对象
-		Table table = connection.getTable(TableName.valueOf(tablename));
+		Table table = connection.getTable(query.getTable());
 		Result rs = null;
 		if (table != null) {
 			try {
 				
 				// 创建查询对象
-				Get g = new Get(Bytes.toBytes(row));
-				if (null != columns && columns.size() != 0) {
-					for (String col : columns) {
-						g.addColumn(Bytes.toBytes(CF), Bytes.toBytes(col));
-					}
-				}
+				Get g = query.newGet(salting.saltRow(tablename, Bytes.toBytes(row)));
+				
 				// 查询获得结果
-				rs = table.get(g);
+				rs = salting.unsalt(tablename, table.get(replicas.apply(tablename, g)));
+				stats.read(rs);
+				HbaseReplicaReads.recordStale(stats, rs);
+				
+				// 副本返回的结果可能落后，不进缓存
+				if (null != rowCache && null != columnsKey && null != rs && !rs.isStale()) {
+					rowCache.put(tablename, row, columnsKey, rs, stamp);
+				}
 			} catch (IOException e) {
+				recordError(stats, e);
 				logger.error("获取失败！", e);
 			} finally {
 				// 关闭连接
 				closeConnect(table);
+				stats.record(startNanos);
 			}
 		}
 		return rs;
@@ -573,8 +1394,32 @@ public class HbaseDaoImpl implements HbaseDao {
 	 */
 	public Result[] getRows(String tablename, List<String> rows, List<String> columns)
 																						throws Exception {
+		return getRows(HbasePreparedQuery.of(tablename, columns), rows);
+	}
+	
+	/**
+	 * 按预编译的查询模板获取多行数据
+	 * @param query
+	 * @param rows
+	 * @return
+	 * @throws Exception
+	 */
+	public Result[] getRows(HbasePreparedQuery query, List<String> rows) throws Exception {
+		String tablename = query.getTableName();
+		if (null != rowCache && null != query.columnsKey()) {
+			return getRowsCached(query, rows);
+		}
+		
+		// 分块查询不支持filter
+		if (null != multiGet && rows.size() > multiGet.getChunkSize()
+			&& null == query.getFilterList()) {
+			return getRowsChunked(tablename, rows, query.getColumns());
+		}
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.GET_ROWS);
+		
 		// 获取htable操作对象
-		Table table = connection.getTable(TableName.valueOf(tablename));
+		Table table = connection.getTable(query.getTable());
 		
 		List<Get> gets = null;
 		Result[] results = null;
@@ -586,14 +1431,10 @@ public class HbaseDaoImpl implements HbaseDao {
 				gets = new ArrayList<Get>();
 				for (String row : rows) {
 					if (row != null) {
-						Get get = new Get(Bytes.toBytes(row));
-						if (null != columns && columns.size() != 0) {
-							for (String col : columns) {
-								get.addColumn(Bytes.toBytes(CF), Bytes.toBytes(col));
-							}
-						}
+						Get get = query.newGet(salting.saltRow(tablename, Bytes.toBytes(row)));
+						
 						// 封装到查询操作list中
-						gets.add(get);
+						gets.add(replicas.apply(tablename, get));
 					} else {
 						throw new RuntimeException("rows 没有数据！");
 					}
@@ -602,106 +1443,1083 @@ public class HbaseDaoImpl implements HbaseDao {
 			if (null != gets && gets.size() > 0) {
 				
 				// 查询数据
-				results = table.get(gets);
+				results = salting.unsalt(tablename, table.get(gets));
+				stats.read(results);
+				HbaseReplicaReads.recordStale(stats, results);
+			}
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("获取数据失败！", e);
+		} finally {
+			
+			// 关闭连接
+			closeConnect(table);
+			stats.record(startNanos);
+		}
+		return results;
+	}
+	
+	/**
+	 * 按传入顺序逐个返回每个rowkey的结果：按regionserver分块并发查询，单个rowkey失败不影响其他，
+	 * rowkey可以为null(结果为失败)；用完需要close
+	 * @param tablename
+	 * @param rows
+	 * @param columns 为空查询全部列
+	 * @return
+	 */
+	public HbaseGetStream streamRows(String tablename, List<String> rows, List<String> columns) {
+		return multiGet.stream(tablename, rows, columns);
+	}
+	
+	/**
+	 * 大批量获取多行数据：分块并发查询，查询失败的行为null并记录日志，不影响其他行；
+	 * 行不存在时为空Result，调用方可据此区分查询失败和行不存在
+	 * @param tablename
+	 * @param rows
+	 * @param columns
+	 * @return
+	 */
+	private Result[] getRowsChunked(String tablename, List<String> rows, List<String> columns) {
+		for (String row : rows) {
+			if (row == null) {
+				throw new RuntimeException("rows 没有数据！");
+			}
+		}
+		Result[] results = new Result[rows.size()];
+		int failed = 0;
+		Throwable firstError = null;
+		HbaseGetStream stream = multiGet.stream(tablename, rows, columns);
+		try {
+			for (int i = 0; stream.hasNext(); i++) {
+				HbaseGetResult r = stream.next();
+				results[i] = r.getResult();
+				if (!r.isSuccess()) {
+					failed++;
+					firstError = null == firstError ? r.getError() : firstError;
+				}
 			}
+		} finally {
+			stream.close();
+		}
+		if (failed > 0) {
+			logger.error("表:{} 获取数据失败{}行！", tablename, failed, firstError);
+		}
+		return results;
+	}
+	
+	/**
+	 * 获取多行数据，命中行缓存的不再查询hbase
+	 * @param query 不带filter
+	 * @param rows
+	 * @return
+	 * @throws Exception
+	 */
+	private Result[] getRowsCached(HbasePreparedQuery query, List<String> rows) throws Exception {
+		if (rows.size() == 0) {
+			return null;
+		}
+		String tablename = query.getTableName();
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.GET_ROWS);
+		String columnsKey = query.columnsKey();
+		long stamp = rowCache.stamp();
+		Result[] results = new Result[rows.size()];
+		
+		// 未命中的行及其下标
+		List<Get> gets = new ArrayList<Get>();
+		List<Integer> missIndexes = new ArrayList<Integer>();
+		for (int i = 0; i < rows.size(); i++) {
+			String row = rows.get(i);
+			if (row == null) {
+				throw new RuntimeException("rows 没有数据！");
+			}
+			results[i] = rowCache.get(tablename, row, columnsKey);
+			if (null == results[i]) {
+				Get get = query.newGet(salting.saltRow(tablename, Bytes.toBytes(row)));
+				gets.add(replicas.apply(tablename, get));
+				missIndexes.add(i);
+			}
+		}
+		if (gets.isEmpty()) {
+			stats.read(results);
+			stats.record(startNanos);
+			return results;
+		}
+		
+		Table table = connection.getTable(query.getTable());
+		try {
+			Result[] fetched = salting.unsalt(tablename, table.get(gets));
+			for (int i = 0; i < fetched.length; i++) {
+				int index = missIndexes.get(i);
+				results[index] = fetched[i];
+				if (!fetched[i].isStale()) {
+					rowCache.put(tablename, rows.get(index), columnsKey, fetched[i], stamp);
+				}
+			}
+			stats.read(results);
+			HbaseReplicaReads.recordStale(stats, fetched);
 		} catch (IOException e) {
+			recordError(stats, e);
 			logger.error("获取数据失败！", e);
+			return null;
 		} finally {
 			
 			// 关闭连接
 			closeConnect(table);
+			stats.record(startNanos);
+		}
+		return results;
+	}
+	
+	/**
+	 * 根据范围扫描rowkey
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Result> getRowsByStartAndStop(String tablename, String start, String stop)
+																							throws Exception {
+		return getRowsByStartAndStop(HbasePreparedQuery.of(tablename, null), start, stop);
+	}
+	
+	/**
+	 * 按预编译的查询模板范围扫描rowkey
+	 * @param query
+	 * @param start 为空从表头开始
+	 * @param stop 为空到表尾，不包含
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Result> getRowsByStartAndStop(HbasePreparedQuery query, String start, String stop)
+																									throws Exception {
+		String tablename = query.getTableName();
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.SCAN);
+		Table table = connection.getTable(query.getTable());
+		
+		List<Result> res = new ArrayList<Result>();
+		
+		Scan scan = query.newScan(null == start ? null : Bytes.toBytes(start), null == stop ? null
+			: Bytes.toBytes(stop));
+		
+		ResultScanner scanner = null;
+		try {
+			if (salting.isSalted(tablename)) {
+				res = scanSalted(tablename, scan, -1);
+			} else {
+				scanner = table.getScanner(scan);
+				
+				for (Result result : scanner) {
+					res.add(result);
+				}
+			}
+			stats.read(res);
+		} catch (IOException e) {
+			recordError(stats, e);
+			throw e;
+		} finally {
+			closeConnect(scanner);
+			closeConnect(table);
+			stats.record(startNanos);
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * 根据范围流式扫描rowkey，按需拉取，调用方读完或提前结束时需close
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param options scan调优参数，可为空
+	 * @return
+	 * @throws Exception
+	 */
+	public HbaseResultStream streamRowsByStartAndStop(String tablename, String start, String stop,
+														HbaseScanOptions options) throws Exception {
+		Scan scan = newRangeScan(start, stop, options);
+		return openStream(tablename, scan, HbaseMetrics.stats(tablename, Op.SCAN_STREAM), true);
+	}
+	
+	/**
+	 * 按预编译的查询模板流式扫描rowkey范围，调用方读完或提前结束时需close
+	 * @param query
+	 * @param start 为空从表头开始
+	 * @param stop 为空到表尾，不包含
+	 * @return
+	 * @throws Exception
+	 */
+	public HbaseResultStream streamRowsByStartAndStop(HbasePreparedQuery query, String start,
+														String stop) throws Exception {
+		Scan scan = query.newScan(null == start ? null : Bytes.toBytes(start), null == stop ? null
+			: Bytes.toBytes(stop));
+		return openStream(query.getTableName(), scan, HbaseMetrics.stats(query.getTableName(),
+			Op.SCAN_STREAM), true);
+	}
+	
+	/**
+	 * 按rowkey批量查询cf中schema的列，并用复用的行视图映射，不拷贝列名和值
+	 * @param tablename
+	 * @param rows
+	 * @param schema
+	 * @param mapper
+	 * @return 与rows顺序一致，不存在的行和mapper返回null的行不在结果中
+	 * @throws Exception
+	 */
+	public <T> List<T> getRows(String tablename, List<String> rows, HbaseRowSchema schema,
+								HbaseRowMapper<T> mapper) throws Exception {
+		Result[] results = getRows(tablename, rows, schema.getQualifiers());
+		List<T> list = new ArrayList<T>(null == results ? 0 : results.length);
+		if (null != results) {
+			HbaseRowView view = new HbaseRowView(schema);
+			for (Result result : results) {
+				mapTo(list, view, result, mapper);
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * 范围扫描cf中schema的列，逐行用复用的行视图映射，不保留Result
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param schema
+	 * @param mapper
+	 * @param options scan调优参数，可为空
+	 * @return 按rowkey排序
+	 * @throws Exception
+	 */
+	public <T> List<T> getRowsByStartAndStop(String tablename, String start, String stop,
+												HbaseRowSchema schema, HbaseRowMapper<T> mapper,
+												HbaseScanOptions options) throws Exception {
+		Scan scan = schema.addTo(newRangeScan(start, stop, options));
+		List<T> list = new ArrayList<T>();
+		HbaseResultStream stream = openStream(tablename, scan, HbaseMetrics.stats(tablename,
+			Op.SCAN_STREAM), true);
+		try {
+			HbaseRowView view = new HbaseRowView(schema);
+			while (stream.hasNext()) {
+				mapTo(list, view, stream.next(), mapper);
+			}
+		} finally {
+			stream.close();
+		}
+		return list;
+	}
+	
+	private static <T> void mapTo(List<T> list, HbaseRowView view, Result result,
+									HbaseRowMapper<T> mapper) {
+		if (view.reset(result)) {
+			T t = mapper.map(view);
+			if (null != t) {
+				list.add(t);
+			}
+		}
+	}
+	
+	/**
+	 * 按region边界拆分范围并行扫描，每个region一个scanner
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param ordered true按rowkey顺序返回，false按region完成先后返回
+	 * @param options scan调优参数，可为空
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Result> getRowsByStartAndStopParallel(String tablename, String start,
+														String stop, boolean ordered,
+														HbaseScanOptions options)
+																					throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.SCAN_PARALLEL);
+		try {
+			List<Result> res = scanParallel(tablename, start, stop, ordered, options);
+			stats.read(res);
+			return res;
+		} catch (Exception e) {
+			recordError(stats, e);
+			throw e;
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 并行扫描实现
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param ordered
+	 * @param options
+	 * @return
+	 * @throws Exception
+	 */
+	private List<Result> scanParallel(String tablename, String start, String stop,
+										boolean ordered, HbaseScanOptions options)
+																					throws Exception {
+		if (salting.isSalted(tablename)) {
+			
+			// 每个桶本身就是并行扫描
+			return scanSalted(tablename, newRangeScan(start, stop, options), -1);
+		}
+		byte[] startRow = null == start ? HConstants.EMPTY_START_ROW : Bytes.toBytes(start);
+		byte[] stopRow = null == stop ? HConstants.EMPTY_END_ROW : Bytes.toBytes(stop);
+		
+		// 按region拆分
+		List<Scan> scans = new ArrayList<Scan>();
+		for (byte[][] range : splitByRegion(tablename, startRow, stopRow)) {
+			Scan scan = new Scan(range[0], range[1]);
+			if (null != options) {
+				options.applyTo(scan);
+			}
+			scans.add(scan);
+		}
+		
+		List<Result> res = new ArrayList<Result>();
+		if (scans.size() == 1) {
+			return drain(openStream(tablename, scans.get(0), null), res);
+		}
+		
+		CompletionService<List<Result>> cs = new ExecutorCompletionService<List<Result>>(
+			scanExecutor);
+		List<Future<List<Result>>> futures = new ArrayList<Future<List<Result>>>();
+		for (final Scan scan : scans) {
+			final String tn = tablename;
+			futures.add(cs.submit(new Callable<List<Result>>() {
+				@Override
+				public List<Result> call() throws Exception {
+					return drain(openStream(tn, scan, null), new ArrayList<Result>());
+				}
+			}));
+		}
+		
+		try {
+			if (ordered) {
+				
+				// region本身有序，按region顺序拼接即为rowkey顺序
+				for (Future<List<Result>> future : futures) {
+					res.addAll(future.get());
+				}
+			} else {
+				for (int i = 0; i < futures.size(); i++) {
+					res.addAll(cs.take().get());
+				}
+			}
+		} catch (ExecutionException e) {
+			logger.error("并行scan失败！", e.getCause());
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} finally {
+			for (Future<List<Result>> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * 根据表的region边界拆分[startRow, stopRow)
+	 * @param tablename
+	 * @param startRow
+	 * @param stopRow 空表示到表尾
+	 * @return 每个元素为{subStart, subStop}
+	 * @throws IOException
+	 */
+	private List<byte[][]> splitByRegion(String tablename, byte[] startRow, byte[] stopRow)
+																							throws IOException {
+		List<byte[][]> ranges = new ArrayList<byte[][]>();
+		RegionLocator locator = connection.getRegionLocator(TableName.valueOf(tablename));
+		try {
+			Pair<byte[][], byte[][]> keys = locator.getStartEndKeys();
+			for (int i = 0; i < keys.getFirst().length; i++) {
+				byte[] regionStart = keys.getFirst()[i];
+				byte[] regionEnd = keys.getSecond()[i];
+				
+				// 取交集
+				byte[] subStart = Bytes.compareTo(regionStart, startRow) > 0 ? regionStart
+					: startRow;
+				byte[] subStop;
+				if (regionEnd.length == 0) {
+					subStop = stopRow;
+				} else if (stopRow.length == 0) {
+					subStop = regionEnd;
+				} else {
+					subStop = Bytes.compareTo(regionEnd, stopRow) < 0 ? regionEnd : stopRow;
+				}
+				if (subStop.length != 0 && Bytes.compareTo(subStart, subStop) >= 0) {
+					continue;
+				}
+				ranges.add(new byte[][] { subStart, subStop });
+			}
+		} finally {
+			locator.close();
+		}
+		return ranges;
+	}
+	
+	/**
+	 * 读取全部结果
+	 * @param stream
+	 * @param res
+	 * @return
+	 */
+	private static List<Result> drain(HbaseResultStream stream, List<Result> res) {
+		try {
+			while (stream.hasNext()) {
+				res.add(stream.next());
+			}
+		} finally {
+			stream.close();
+		}
+		return res;
+	}
+	
+	/**
+	 * filter 查询
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param scvfs
+	 * @param rfs
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Result> getRowsByFilters(String tablename, String start,String stop,
+											List<SingleColumnValueFilter> scvfs,
+											List<RowFilter> rfs, FilterList.Operator operator)
+																								throws Exception {
+		Scan scan = new Scan();
+		
+		List<Result> res = new ArrayList<Result>();
+		
+		if (operator == null) {
+			return null;
+		}
+		
+		if (null != start) {
+			scan.setStartRow(Bytes.toBytes(start));
+		}
+		
+		if (null != stop) {
+			scan.setStopRow(Bytes.toBytes(stop));
+		}
+		
+		scan.setFilter(newFilterList(scvfs, rfs, operator));
+		
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.SCAN_FILTER);
+		Table table = connection.getTable(TableName.valueOf(tablename));
+		ResultScanner scanner = null;
+		try {
+			if (salting.isSalted(tablename)) {
+				res = scanSalted(tablename, scan, -1);
+			} else {
+				scanner = table.getScanner(scan);
+				
+				for (Result result : scanner) {
+					res.add(result);
+				}
+			}
+			stats.read(res);
+		} catch (IOException e) {
+			recordError(stats, e);
+			throw e;
+		} finally {
+			closeConnect(scanner);
+			closeConnect(table);
+			stats.record(startNanos);
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * filter 流式查询，按需拉取，调用方读完或提前结束时需close
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param scvfs
+	 * @param rfs
+	 * @param operator
+	 * @param options scan调优参数，可为空
+	 * @return
+	 * @throws Exception
+	 */
+	public HbaseResultStream streamRowsByFilters(String tablename, String start, String stop,
+													List<SingleColumnValueFilter> scvfs,
+													List<RowFilter> rfs,
+													FilterList.Operator operator,
+													HbaseScanOptions options) throws Exception {
+		if (operator == null) {
+			return null;
+		}
+		Scan scan = newRangeScan(start, stop, options);
+		scan.setFilter(newFilterList(scvfs, rfs, operator));
+		return openStream(tablename, scan, HbaseMetrics.stats(tablename, Op.SCAN_STREAM), true);
+	}
+	
+	/**
+	 * 创建范围扫描
+	 * @param start
+	 * @param stop
+	 * @param options
+	 * @return
+	 */
+	private Scan newRangeScan(String start, String stop, HbaseScanOptions options) {
+		Scan scan = new Scan();
+		if (null != start) {
+			scan.setStartRow(Bytes.toBytes(start));
+		}
+		if (null != stop) {
+			scan.setStopRow(Bytes.toBytes(stop));
+		}
+		if (null != options) {
+			options.applyTo(scan);
+		}
+		return scan;
+	}
+	
+	/**
+	 * 组装filter
+	 * @param scvfs
+	 * @param rfs
+	 * @param operator
+	 * @return
+	 */
+	private FilterList newFilterList(List<SingleColumnValueFilter> scvfs, List<RowFilter> rfs,
+										FilterList.Operator operator) {
+		FilterList fl = new FilterList(operator);
+		
+		if (scvfs != null && scvfs.size() != 0) {
+			for (SingleColumnValueFilter rowFilter : scvfs) {
+				fl.addFilter(rowFilter);
+			}
+		}
+		
+		if (rfs != null && rfs.size() != 0) {
+			for (RowFilter rowFilter : rfs) {
+				fl.addFilter(rowFilter);
+			}
+		}
+		return fl;
+	}
+	
+	/**
+	 * 打开scanner，失败时释放table
+	 * @param tablename
+	 * @param scan
+	 * @param stats 指标，为空时不统计
+	 * @return
+	 * @throws IOException
+	 */
+	private HbaseResultStream openStream(String tablename, Scan scan, HbaseOperationStats stats)
+																								throws IOException {
+		Table table = connection.getTable(TableName.valueOf(tablename));
+		try {
+			return new HbaseResultStream(table, table.getScanner(scan), stats);
+		} catch (IOException e) {
+			if (null != stats) {
+				stats.error();
+			}
+			closeConnect(table);
+			throw e;
+		}
+	}
+	
+	/**
+	 * 打开scanner，加盐表每个桶一个scanner并行打开，按原rowkey归并
+	 * @param tablename
+	 * @param scan 原rowkey上的scan
+	 * @param stats 指标，为空时不统计
+	 * @param saltAware
+	 * @return
+	 * @throws IOException
+	 */
+	private HbaseResultStream openStream(final String tablename, Scan scan,
+											HbaseOperationStats stats, boolean saltAware)
+																							throws IOException {
+		if (!saltAware || !salting.isSalted(tablename)) {
+			return openStream(tablename, scan, stats);
+		}
+		List<Future<HbaseResultStream>> futures = new ArrayList<Future<HbaseResultStream>>();
+		for (final Scan s : HbaseSalting.bucketScans(scan, salting.buckets(tablename))) {
+			futures.add(scanExecutor.submit(new Callable<HbaseResultStream>() {
+				@Override
+				public HbaseResultStream call() throws Exception {
+					return openStream(tablename, s, null);
+				}
+			}));
+		}
+		List<HbaseResultStream> sources = new ArrayList<HbaseResultStream>(futures.size());
+		try {
+			for (Future<HbaseResultStream> future : futures) {
+				sources.add(future.get());
+			}
+		} catch (Exception e) {
+			
+			// 关闭已打开的scanner，未完成的等打开后关闭
+			for (Future<HbaseResultStream> future : futures) {
+				try {
+					future.get().close();
+				} catch (Exception ignore) {
+				}
+			}
+			if (null != stats) {
+				stats.error();
+			}
+			throw toIOException(e);
+		}
+		return new HbaseResultStream(sources, stats);
+	}
+	
+	/**
+	 * 加盐表每个桶一个scanner并行扫描，按原rowkey归并
+	 * @param tablename
+	 * @param scan 原rowkey上的scan
+	 * @param limit 最多返回的行数，小于0不限制，每个桶也只读这么多行
+	 * @return 去掉桶号的结果
+	 * @throws IOException
+	 */
+	private List<Result> scanSalted(final String tablename, Scan scan, final int limit)
+																						throws IOException {
+		List<Future<List<Result>>> futures = new ArrayList<Future<List<Result>>>();
+		for (final Scan s : HbaseSalting.bucketScans(scan, salting.buckets(tablename))) {
+			futures.add(scanExecutor.submit(new Callable<List<Result>>() {
+				@Override
+				public List<Result> call() throws Exception {
+					HbaseResultStream stream = openStream(tablename, s, null);
+					List<Result> res = new ArrayList<Result>();
+					try {
+						while ((limit < 0 || res.size() < limit) && stream.hasNext()) {
+							res.add(stream.next());
+						}
+					} finally {
+						stream.close();
+					}
+					return res;
+				}
+			}));
+		}
+		List<List<Result>> buckets = new ArrayList<List<Result>>(futures.size());
+		try {
+			for (Future<List<Result>> future : futures) {
+				buckets.add(future.get());
+			}
+		} catch (Exception e) {
+			throw toIOException(e);
+		} finally {
+			for (Future<List<Result>> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return HbaseSalting.merge(buckets, limit);
+	}
+	
+	/**
+	 * 并行任务的异常转成IOException
+	 * @param e
+	 * @return
+	 */
+	static IOException toIOException(Exception e) {
+		if (e instanceof InterruptedException) {
+			Thread.currentThread().interrupt();
+			return new InterruptedIOException("scan 被中断！");
+		}
+		Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		if (cause instanceof RuntimeException && cause.getCause() instanceof IOException) {
+			return (IOException) cause.getCause();
+		}
+		return new IOException(cause);
+	}
+	
+	/**
+	 * rowkey加盐：表的rowkey前加hash桶号，打散递增rowkey的写入，
+	 * 之后该表的读写、扫描、分页都使用原rowkey，需在写入数据前注册
+	 * @param tableName
+	 * @param buckets 2~256
+	 */
+	public static void registerSaltedTable(String tableName, int buckets) {
+		salting.register(tableName, buckets);
+	}
+	
+	/**
+	 * 默认snappy压缩建加盐表，每个桶预分一个region，并注册加盐
+	 * @param tableName
+	 * @param cfs
+	 * @param buckets 2~256
+	 * @param isDelete
+	 * @param timeToLive 小于1为不限制
+	 * @throws Exception
+	 */
+	public void createSaltedTableBySNAPPY(String tableName, String[] cfs, int buckets,
+											boolean isDelete, int timeToLive) throws Exception {
+		createTableBySNAPPY(tableName, cfs, HbaseSalting.splits(buckets), isDelete, timeToLive);
+		registerSaltedTable(tableName, buckets);
+	}
+	
+	/**
+	 * 启用表的region副本读：getRow/getRows使用TIMELINE一致性，主region慢时由副本返回，
+	 * 副本返回的Result.isStale()为true，次数记入该表GET_ROW/GET_ROWS/MULTI_GET的staleReads指标
+	 * @param tableName
+	 */
+	public static void registerReplicaReads(String tableName) {
+		replicas.register(tableName);
+	}
+	
+	/**
+	 * 修改表的region副本数，修改期间表会被disable；需要regionserver开启副本读相关配置
+	 * @param tableName
+	 * @param regionReplicas 1为不使用副本
+	 * @throws Exception
+	 */
+	public void setRegionReplication(String tableName, int regionReplicas) throws Exception {
+		Admin admin = connection.getAdmin();
+		try {
+			HbaseReplicaReads.setRegionReplication(admin, tableName, regionReplicas);
+		} finally {
+			closeConnect(admin);
+		}
+	}
+	
+	/**
+	 * 启用cf列的二级索引，之后的同步写入、删除会维护索引，已有数据需要rebuildIndex
+	 * @param tableName
+	 * @param qualifier
+	 */
+	public static void registerIndex(String tableName, String qualifier) {
+		indexes.register(tableName, qualifier);
+	}
+	
+	/**
+	 * 建索引表(已存在则保留)并启用索引，可选扫描数据表回填已有数据；
+	 * 先启用再回填，回填期间的写入不会漏索引
+	 * @param tableName 数据表
+	 * @param qualifier cf下的列
+	 * @param splits 索引表预分区，按列值切分，可为null
+	 * @param rebuild 是否回填
+	 * @return 回填的索引数
+	 * @throws Exception
+	 */
+	public long createIndex(String tableName, String qualifier, byte[][] splits, boolean rebuild)
+																									throws Exception {
+		String indexTable = HbaseIndexManager.indexTableName(tableName, qualifier);
+		Admin admin = connection.getAdmin();
+		boolean exists;
+		try {
+			exists = admin.tableExists(TableName.valueOf(indexTable));
+		} finally {
+			closeConnect(admin);
+		}
+		if (!exists) {
+			createTableBySNAPPY(indexTable,
+				new String[] { Bytes.toString(HbaseIndexManager.INDEX_CF) }, splits, false, -1);
+		}
+		registerIndex(tableName, qualifier);
+		return rebuild ? rebuildIndex(tableName, qualifier) : 0;
+	}
+	
+	/**
+	 * 扫描数据表回填索引，用于启用索引前已有的数据、异步删除和bulk load以外途径写入的数据；
+	 * 已存在的索引重复写入无影响
+	 * @param tableName
+	 * @param qualifier
+	 * @return 写入的索引数
+	 * @throws Exception
+	 */
+	public long rebuildIndex(String tableName, String qualifier) throws Exception {
+		long start = System.currentTimeMillis();
+		long count = indexes.rebuild(tableName, qualifier);
+		logger.info("表:{} 列:{} 索引回填完成，索引数:{}，耗时:{}", tableName, qualifier, count,
+			(System.currentTimeMillis() - start));
+		return count;
+	}
+	
+	/**
+	 * 按cf列值查询：从索引表取出rowkey再批量get数据行，
+	 * 数据行的列值与查询值不一致(更新或删除后残留)的索引不返回，并在后台清理
+	 * @param tablename
+	 * @param qualifier 已建索引的列
+	 * @param value
+	 * @param columns 查询的列，为空查询全部列；不为空时结果中会包含索引列
+	 * @return 按rowkey排序
+	 * @throws Exception
+	 */
+	public List<Result> getRowsByIndex(final String tablename, final String qualifier,
+										String value, List<String> columns) throws Exception {
+		if (!indexes.isIndexed(tablename, qualifier)) {
+			throw new IllegalArgumentException("表:" + tablename + " 列:" + qualifier + " 未建索引");
+		}
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.INDEX_LOOKUP);
+		final byte[] v = Bytes.toBytes(value);
+		byte[] cf = CF_BYTES;
+		byte[] q = Bytes.toBytes(qualifier);
+		List<Result> list = new ArrayList<Result>();
+		try {
+			Map<String, Long> indexed = indexes.lookup(tablename, qualifier, v);
+			if (indexed.isEmpty()) {
+				return list;
+			}
+			
+			// 校验需要索引列的值
+			List<String> cols = columns;
+			if (null != columns && columns.size() != 0 && !columns.contains(qualifier)) {
+				cols = new ArrayList<String>(columns);
+				cols.add(qualifier);
+			}
+			List<String> rows = new ArrayList<String>(indexed.keySet());
+			Result[] results = getRows(tablename, rows, cols);
+			if (null == results) {
+				throw new IOException("getRowsByIndex 回表查询失败");
+			}
+			
+			// 分块查询时失败的行为null，不能当作列值已变化，不清理其索引
+			final Map<String, Long> stale = new LinkedHashMap<String, Long>();
+			long graceBefore = System.currentTimeMillis() - indexGraceMs;
+			int failed = 0;
+			for (int i = 0; i < results.length; i++) {
+				Result r = results[i];
+				if (null == r) {
+					failed++;
+					continue;
+				}
+				byte[] current = r.getValue(cf, q);
+				if (null != current && Bytes.equals(current, v)) {
+					list.add(r);
+				} else if (indexed.get(rows.get(i)) < graceBefore) {
+					stale.put(rows.get(i), indexed.get(rows.get(i)));
+				}
+			}
+			if (!stale.isEmpty()) {
+				repairIndexAsyn(tablename, qualifier, v, stale);
+			}
+			if (failed > 0) {
+				throw new IOException("getRowsByIndex 回表查询失败" + failed + "行");
+			}
+			stats.read(list);
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("getRowsByIndex 查询失败：exception ", e);
+			throw new RuntimeException("getRowsByIndex 查询失败！" + e.getMessage());
+		} finally {
+			stats.record(startNanos);
+		}
+		return list;
+	}
+	
+	/**
+	 * 后台删除查询时发现的残留索引，失败只记日志，下次查询再清理
+	 * @param tablename
+	 * @param qualifier
+	 * @param value
+	 * @param stale
+	 */
+	private void repairIndexAsyn(final String tablename, final String qualifier,
+									final byte[] value, final Map<String, Long> stale) {
+		try {
+			scanExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						indexes.repair(tablename, qualifier, value, stale);
+					} catch (Exception e) {
+						logger.error("表:{} 列:{} 清理残留索引失败！", tablename, qualifier, e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("表:{} 列:{} 清理残留索引未提交：{}", tablename, qualifier, e.getMessage());
+		}
+	}
+	
+	/**
+	 * 表上加载服务端聚合协处理器AggregateImplementation，
+	 * 列值解释器HbaseStringLongColumnInterpreter需要部署到regionserver的classpath
+	 * @param tableName
+	 * @throws Exception
+	 */
+	public void enableAggregation(String tableName) throws Exception {
+		Admin admin = connection.getAdmin();
+		try {
+			HbaseAggregator.enable(admin, tableName);
+		} finally {
+			closeConnect(admin);
+		}
+	}
+	
+	/**
+	 * 服务端统计rowkey范围内的行数
+	 * @param tablename
+	 * @param start 为空从表头开始
+	 * @param stop 为空到表尾，不包含
+	 * @param filterList 可为空
+	 * @return
+	 * @throws Exception
+	 */
+	public long rowCount(String tablename, String start, String stop, FilterList filterList)
+																							throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.AGGREGATE);
+		try {
+			return aggregator.rowCount(tablename, aggregateScan(start, stop, filterList, null));
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("rowCount 统计失败：exception ", e);
+			throw new RuntimeException("rowCount 统计失败！" + e.getMessage());
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 服务端对cf列求和，列值为十进制整数字符串，非数字的值不参与
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param filterList 只能过滤该列
+	 * @param qualifier
+	 * @return
+	 * @throws Exception
+	 */
+	public long sum(String tablename, String start, String stop, FilterList filterList,
+					String qualifier) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.AGGREGATE);
+		try {
+			return aggregator.sum(tablename, aggregateScan(start, stop, filterList, qualifier));
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("sum 统计失败：exception ", e);
+			throw new RuntimeException("sum 统计失败！" + e.getMessage());
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 服务端求cf列的最小值
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param filterList 只能过滤该列
+	 * @param qualifier
+	 * @return 没有数字值时为null
+	 * @throws Exception
+	 */
+	public Long min(String tablename, String start, String stop, FilterList filterList,
+					String qualifier) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.AGGREGATE);
+		try {
+			return aggregator.min(tablename, aggregateScan(start, stop, filterList, qualifier));
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("min 统计失败：exception ", e);
+			throw new RuntimeException("min 统计失败！" + e.getMessage());
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 服务端求cf列的最大值
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param filterList 只能过滤该列
+	 * @param qualifier
+	 * @return 没有数字值时为null
+	 * @throws Exception
+	 */
+	public Long max(String tablename, String start, String stop, FilterList filterList,
+					String qualifier) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.AGGREGATE);
+		try {
+			return aggregator.max(tablename, aggregateScan(start, stop, filterList, qualifier));
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("max 统计失败：exception ", e);
+			throw new RuntimeException("max 统计失败！" + e.getMessage());
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 按cf列值分组计数，按region并行扫描，没有filterList时只读取该列
+	 * @param tablename
+	 * @param start
+	 * @param stop
+	 * @param filterList 可为空
+	 * @param qualifier 分组的列
+	 * @return 列值 -> 行数
+	 * @throws Exception
+	 */
+	public Map<String, Long> groupCount(String tablename, String start, String stop,
+										FilterList filterList, String qualifier) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.AGGREGATE);
+		
+		// filter可能用到其他列，有filter时读取整个列族
+		Scan scan = aggregateScan(start, stop, filterList, null == filterList ? qualifier : null);
+		scan.setCaching(1000);
+		try {
+			return aggregator.groupCount(tablename, scan, CF_BYTES, Bytes.toBytes(qualifier));
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("groupCount 统计失败：exception ", e);
+			throw new RuntimeException("groupCount 统计失败！" + e.getMessage());
+		} finally {
+			stats.record(startNanos);
 		}
-		return results;
 	}
 	
 	/**
-	 * 根据范围扫描rowkey
-	 * @param tablename
-	 * @param start
-	 * @param stop
+	 * 服务端统计分页的总页数，范围和条件与scanResultByPageModel相同
+	 * @param pageModel
 	 * @return
 	 * @throws Exception
 	 */
-	public List<Result> getRowsByStartAndStop(String tablename, String start, String stop)
-																							throws Exception {
-		Table table = connection.getTable(TableName.valueOf(Bytes.toBytes(tablename)));
-		
-		List<Result> res = new ArrayList<Result>();
-		
-		Scan scan = new Scan();
-		
-		if (null != start) {
-			scan.setStartRow(start.getBytes());
-		}
-		
-		if (null != stop) {
-			scan.setStopRow(stop.getBytes());
-		}
-		
-		ResultScanner scanner = table.getScanner(scan);
-		
-		for (Result result : scanner) {
-			res.add(result);
-		}
-		
-		return res;
+	public long countPages(HBasePageModel pageModel) throws Exception {
+		long rows = rowCount(pageModel.getTableName(), pageModel.getStartRowKey(), pageModel
+			.getEndRowKey(), pageModel.getFilterList());
+		long pageSize = pageModel.getPageSize();
+		return (rows + pageSize - 1) / pageSize;
 	}
 	
 	/**
-	 * filter 查询
-	 * @param tablename
+	 * 聚合使用的scan，只有cf一个列族，不缓存读到的block
 	 * @param start
 	 * @param stop
-	 * @param scvfs
-	 * @param rfs
+	 * @param filterList
+	 * @param qualifier 为空时读取整个列族
 	 * @return
-	 * @throws Exception
 	 */
-	public List<Result> getRowsByFilters(String tablename, String start,String stop,
-											List<SingleColumnValueFilter> scvfs,
-											List<RowFilter> rfs, FilterList.Operator operator)
-																								throws Exception {
-		Table table = connection.getTable(TableName.valueOf(tablename));
-		
+	private Scan aggregateScan(String start, String stop, FilterList filterList, String qualifier) {
 		Scan scan = new Scan();
-		
-		List<Result> res = new ArrayList<Result>();
-		
-		if (operator == null) {
-			return null;
-		}
-		
-		if (null != start) {
-			scan.setStartRow(start.getBytes());
-		}
-		
-		if (null != stop) {
-			scan.setStopRow(stop.getBytes());
+		if (StringUtils.isNotEmpty(start)) {
+			scan.setStartRow(Bytes.toBytes(start));
 		}
-		
-		FilterList fl = new FilterList(operator);
-		
-		if (scvfs != null && scvfs.size() != 0) {
-			for (SingleColumnValueFilter rowFilter : scvfs) {
-				fl.addFilter(rowFilter);
-			}
+		if (StringUtils.isNotEmpty(stop)) {
+			scan.setStopRow(Bytes.toBytes(stop));
 		}
-		
-		if (rfs != null && rfs.size() != 0) {
-			for (RowFilter rowFilter : rfs) {
-				fl.addFilter(rowFilter);
-			}
+		if (null == qualifier) {
+			scan.addFamily(CF_BYTES);
+		} else {
+			scan.addColumn(CF_BYTES, Bytes.toBytes(qualifier));
 		}
-		
-		scan.setFilter(fl);
-		
-		ResultScanner scanner = table.getScanner(scan);
-		
-		for (Result result : scanner) {
-			res.add(result);
+		if (null != filterList) {
+			scan.setFilter(filterList);
 		}
-		
-		return res;
+		scan.setCacheBlocks(false);
+		return scan;
 	}
 	
 	/**
@@ -730,14 +2548,36 @@ public class HbaseDaoImpl implements HbaseDao {
 		
 		PageFilter pf = null;
 		
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(pageModel.getTableName(), Op.PAGE_ANY);
+		
 		try {
-			//找出跳转页的 第一个rowkey
-			String selectPageLastRow = selectPageLastRow(pageModel.getTableName(),
-				pageModel.getFilterList(), pageModel.getIndexFirstRow());
+			int firstRow = pageModel.getIndexFirstRow();
+			
+			// 索引key要在filterList被修改前生成
+			String indexKey = null == pageIndexCache ? null : HbasePageIndexCache.key(pageModel
+				.getFilterList());
+			
+			//找出跳转页的 第一个rowkey，有已知行时从最近的已知行往后数
+			Map.Entry<Integer, String> known = null == indexKey ? null : pageIndexCache.floor(
+				pageModel.getTableName(), indexKey, firstRow);
+			String selectPageLastRow;
+			if (null != known && known.getKey() == firstRow) {
+				selectPageLastRow = known.getValue();
+			} else if (null != known) {
+				selectPageLastRow = selectPageLastRow(pageModel.getTableName(),
+					pageModel.getFilterList(), firstRow - known.getKey() + 1, known.getValue());
+			} else {
+				selectPageLastRow = selectPageLastRow(pageModel.getTableName(),
+					pageModel.getFilterList(), firstRow);
+			}
 			
 			if (null == selectPageLastRow) {
 				return null;
 			}
+			if (null != indexKey) {
+				pageIndexCache.put(pageModel.getTableName(), indexKey, firstRow, selectPageLastRow);
+			}
 			
 			table = connection.getTable(TableName.valueOf(pageModel.getTableName()));
 			scan = new Scan();
@@ -750,34 +2590,54 @@ public class HbaseDaoImpl implements HbaseDao {
 				scan.setStopRow(Bytes.toBytes(pageModel.getEndRowKey()));
 			}
 			
-			//分页filter
-			pf = new PageFilter(pageModel.getPageSize());
+			//分页filter，多取一行作为下一页的起始rowkey
+			pf = new PageFilter(pageModel.getPageSize() + 1);
 			
-			//判断是否为空
+			//判断是否为空，不修改调用方的filterList
 			if (null == pageModel.getFilterList()) {
 				scan.setFilter(pf);
 			} else {
-				filterList = pageModel.getFilterList();
-				filterList.addFilter(pf);
+				filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL,
+					pageModel.getFilterList(), pf);
 				scan.setFilter(filterList);
 			}
 			
 			//设置第一条记录
 			scan.setStartRow(Bytes.toBytes(selectPageLastRow));
 			
-			scanner = table.getScanner(scan);
+			// 加盐表每个桶取pageSize+1行后按原rowkey归并
+			Iterable<Result> results;
+			if (salting.isSalted(pageModel.getTableName())) {
+				results = scanSalted(pageModel.getTableName(), scan, pageModel.getPageSize() + 1);
+			} else {
+				scanner = table.getScanner(scan);
+				results = scanner;
+			}
 			
 			list = new ArrayList<Result>();
 			
-			for (Result result : scanner) {
-				list.add(result);
+			for (Result result : results) {
+				if (list.size() < pageModel.getPageSize()) {
+					list.add(result);
+				} else {
+					
+					// 记录下一页的起始rowkey
+					if (null != indexKey) {
+						pageIndexCache.put(pageModel.getTableName(), indexKey,
+							firstRow + pageModel.getPageSize(), Bytes.toString(result.getRow()));
+					}
+					break;
+				}
 			}
+			stats.read(list);
 			pageModel.setData(list);
 		} catch (Exception e) {
+			recordError(stats, e);
 			throw e;
 		} finally {
 			closeConnect(table);
 			closeConnect(scanner);
+			stats.record(startNanos);
 		}
 		
 		return pageModel;
@@ -794,7 +2654,20 @@ public class HbaseDaoImpl implements HbaseDao {
 		if (pageModel == null) {
 			return null;
 		}
-		
+		return scanResultByPageModel(HbasePreparedQuery.of(pageModel.getTableName(), pageModel
+			.getColumns(), pageModel.getFilterList(), null), pageModel);
+	}
+	
+	/**
+	 * 分页，表、列和filter取自预编译的查询模板，忽略pageModel中的表名、列和filterList
+	 * @param query
+	 * @param pageModel 起止rowkey、页大小和翻页位置
+	 * @return
+	 * @throws IOException
+	 */
+	public HBasePageModel scanResultByPageModel(HbasePreparedQuery query,
+												HBasePageModel pageModel) throws IOException {
+		String tablename = query.getTableName();
 		List<Result> list = null;
 		
 		Table table = null;
@@ -809,12 +2682,14 @@ public class HbaseDaoImpl implements HbaseDao {
 		
 		PageFilter pf = null;
 		
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tablename, Op.PAGE);
+		
 		try {
-			table = connection.getTable(TableName.valueOf(pageModel.getTableName()));
+			table = connection.getTable(query.getTable());
 			
 			if (null == pageModel.getDownPageRowKey()) {
-				selectFirstResultRow = selectFirstResultRow(pageModel.getTableName(),
-					pageModel.getFilterList());
+				selectFirstResultRow = selectFirstResultRow(tablename, query.getFilterList(), true);
 				if (null == selectFirstResultRow) {
 					return pageModel;
 				}
@@ -822,34 +2697,13 @@ public class HbaseDaoImpl implements HbaseDao {
 				pageModel.setThisPageRowKey(thisPageRowKey);
 			}
 			
-			scan = new Scan();
-			
-			//设置rowkey扫描
-			if (null != pageModel.getStartRowKey()) {
-				scan.setStartRow(Bytes.toBytes(pageModel.getStartRowKey()));
-			}
-			if (null != pageModel.getEndRowKey()) {
-				scan.setStopRow(Bytes.toBytes(pageModel.getEndRowKey()));
-			}
-			
-			//判断查询的列
-			if (null != pageModel.getColumns() && pageModel.getColumns().size() != 0) {
-				for (String col : pageModel.getColumns()) {
-					scan.addColumn(Bytes.toBytes(CF), Bytes.toBytes(col));
-				}
-			}
-			
 			//创建分页filter
 			pf = new PageFilter(pageModel.getPageSizePlusOne());
 			
-			//判断是否有listfilter
-			if (null == pageModel.getFilterList()) {
-				scan.setFilter(pf);
-			} else {
-				FilterList filterList = pageModel.getFilterList();
-				filterList.addFilter(pf);
-				scan.setFilter(filterList);
-			}
+			//设置rowkey扫描，列和filter来自模板，不修改调用方的filterList
+			scan = query.newScan(null == pageModel.getStartRowKey() ? null : Bytes
+				.toBytes(pageModel.getStartRowKey()), null == pageModel.getEndRowKey() ? null
+				: Bytes.toBytes(pageModel.getEndRowKey()), pf);
 			
 			//设置startRow起始值,这个相当于第一条值
 			if (null == thisPageRowKey) {
@@ -859,11 +2713,19 @@ public class HbaseDaoImpl implements HbaseDao {
 			pageModel.setDownPageRowKey(null);
 			int flag = 0;
 			list = new ArrayList<Result>();
-			scanner = table.getScanner(scan);
-			if (null == scanner) {
-				return pageModel;
+			
+			// 加盐表每个桶取pageSize+1行后按原rowkey归并
+			Iterable<Result> results;
+			if (salting.isSalted(tablename)) {
+				results = scanSalted(tablename, scan, pageModel.getPageSizePlusOne());
+			} else {
+				scanner = table.getScanner(scan);
+				if (null == scanner) {
+					return pageModel;
+				}
+				results = scanner;
 			}
-			for (Result result : scanner) {
+			for (Result result : results) {
 				if (flag < pageModel.getPageSize()) {
 					list.add(result);
 				}
@@ -876,13 +2738,16 @@ public class HbaseDaoImpl implements HbaseDao {
 				}
 			}
 			
+			stats.read(list);
 			pageModel.setIndex(pageModel.getIndex() + 1);
 			pageModel.setData(list);
 		} catch (Exception e) {
+			recordError(stats, e);
 			throw e;
 		} finally {
 			closeConnect(scanner);
 			closeConnect(table);
+			stats.record(startNanos);
 		}
 		
 		return pageModel;
@@ -895,26 +2760,55 @@ public class HbaseDaoImpl implements HbaseDao {
 	 * @return
 	 */
 	public Result selectFirstResultRow(String tableName, FilterList filterList) {
+		return selectFirstResultRow(tableName, filterList, false);
+	}
+	
+	/**
+	 * 检索指定表的第一行记录
+	 * @param tableName
+	 * @param filterList
+	 * @param keyOnly true只返回rowkey，服务端去掉value
+	 * @return
+	 */
+	public Result selectFirstResultRow(String tableName, FilterList filterList, boolean keyOnly) {
 		if (StringUtils.isBlank(tableName)) {
 			
 			logger.info("查询的表名为空");
 			return null;
 		}
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.SELECT_FIRST_ROW);
 		Table table = null;
 		ResultScanner scanner = null;
 		try {
 			table = connection.getTable(TableName.valueOf(tableName));
-			Scan scan = new Scan();
-			if (filterList != null) {
-				scan.setFilter(filterList);
+			Scan scan;
+			if (keyOnly) {
+				scan = newKeyOnlyScan(filterList, new PageFilter(1));
+				scan.setCaching(1);
+			} else {
+				scan = new Scan();
+				if (filterList != null) {
+					scan.setFilter(filterList);
+				}
 			}
-			scanner = table.getScanner(scan);
-			return scanner.iterator().next();
+			Result first;
+			if (salting.isSalted(tableName)) {
+				List<Result> firsts = scanSalted(tableName, scan, 1);
+				first = firsts.isEmpty() ? null : firsts.get(0);
+			} else {
+				scanner = table.getScanner(scan);
+				first = scanner.iterator().next();
+			}
+			stats.read(first);
+			return first;
 		} catch (IOException e) {
+			recordError(stats, e);
 			e.printStackTrace();
 		} finally {
 			closeConnect(scanner);
 			closeConnect(table);
+			stats.record(startNanos);
 		}
 		return null;
 	}
@@ -929,6 +2823,20 @@ public class HbaseDaoImpl implements HbaseDao {
 	 */
 	public String selectPageLastRow(String tableName, FilterList filterList, int page)
 																						throws IOException {
+		return selectPageLastRow(tableName, filterList, page, null);
+	}
+	
+	/**
+	 * 从startRow开始(包含)往后数，返回第page行的rowkey
+	 * @param tableName
+	 * @param filterList
+	 * @param page 第几行，从1开始
+	 * @param startRow 为空从表头开始
+	 * @return
+	 * @throws IOException
+	 */
+	public String selectPageLastRow(String tableName, FilterList filterList, int page,
+									String startRow) throws IOException {
 		
 		if (StringUtils.isBlank(tableName)) {
 			return null;
@@ -944,37 +2852,174 @@ public class HbaseDaoImpl implements HbaseDao {
 		
 		String lastRowKey = null;
 		
+		HbaseResultStream stream = null;
+		
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.SELECT_PAGE_LAST_ROW);
+		
 		try {
 			table = connection.getTable(TableName.valueOf(tableName));
 			pageFilter = new PageFilter(page);
-			scan = new Scan();
-			if (null != filterList) {
-				
-				filterList.addFilter(pageFilter);
-				scan.setFilter(filterList);
-				
-			} else {
-				scan.setFilter(pageFilter);
+			
+			// 只需要rowkey，服务端去掉value
+			scan = newKeyOnlyScan(filterList, pageFilter);
+			scan.setCaching(Math.min(page, 1000));
+			if (null != startRow) {
+				scan.setStartRow(Bytes.toBytes(startRow));
 			}
 			
-			scanner = table.getScanner(scan);
+			// 加盐表各桶按原rowkey归并后再数
+			Iterator<Result> iter;
+			if (salting.isSalted(tableName)) {
+				stream = openStream(tableName, scan, null, true);
+				iter = stream;
+			} else {
+				scanner = table.getScanner(scan);
+				iter = scanner.iterator();
+			}
 			
 			int flag = 0;
 			
-			for (Result result : scanner) {
+			while (iter.hasNext()) {
+				Result result = iter.next();
 				flag++;
 				if (flag == page) {
 					lastRowKey = Bytes.toString(result.getRow());
+					break;
 				}
 			}
+			stats.read(flag, 0);
 			return lastRowKey;
 		} catch (Exception e) {
+			recordError(stats, e);
 			throw e;
 		} finally {
+			if (null != stream) {
+				stream.close();
+			}
 			closeConnect(scanner);
 			closeConnect(table);
+			stats.record(startNanos);
+		}
+		
+	}
+	
+	/**
+	 * 只取rowkey的scan，用于定位、计数：服务端只返回key不返回value，不缓存读到的block
+	 * filterList只按rowkey过滤时每行只读第一个cell，有按列值过滤时需要读完整行才能判断
+	 * @param filterList 调用方的filter，不会被修改
+	 * @param filters 追加的filter，如PageFilter
+	 * @return
+	 */
+	private static Scan newKeyOnlyScan(FilterList filterList, Filter... filters) {
+		FilterList fl = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+		if (null != filterList) {
+			fl.addFilter(filterList);
+		}
+		if (isRowKeyFilter(filterList)) {
+			fl.addFilter(new FirstKeyOnlyFilter());
+		}
+		for (Filter filter : filters) {
+			fl.addFilter(filter);
 		}
 		
+		// 放在最后，前面的filter仍能看到原始value
+		fl.addFilter(new KeyOnlyFilter());
+		
+		Scan scan = new Scan();
+		scan.setFilter(fl);
+		scan.setCacheBlocks(false);
+		return scan;
+	}
+	
+	/**
+	 * filter是否只依赖rowkey
+	 * @param filter
+	 * @return
+	 */
+	private static boolean isRowKeyFilter(Filter filter) {
+		if (null == filter || filter instanceof RowFilter || filter instanceof PrefixFilter) {
+			return true;
+		}
+		if (filter instanceof FilterList) {
+			for (Filter f : ((FilterList) filter).getFilters()) {
+				if (!isRowKeyFilter(f)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * 表有写入或结构变化，失效相关缓存
+	 * @param tablename
+	 */
+	private static void onTableWrite(String tablename) {
+		if (null != pageIndexCache) {
+			pageIndexCache.invalidate(tablename);
+		}
+		if (null != rowCache) {
+			rowCache.invalidate(tablename);
+		}
+	}
+	
+	/**
+	 * 行有写入，失效分页索引和这些行的缓存
+	 * @param tablename
+	 * @param rows
+	 */
+	private static void onRowsWrite(String tablename, Collection<String> rows) {
+		if (null != pageIndexCache) {
+			pageIndexCache.invalidate(tablename);
+		}
+		if (null != rowCache && null != rows) {
+			for (String row : rows) {
+				rowCache.invalidate(tablename, row);
+			}
+		}
+	}
+	
+	/**
+	 * 取出写入数据的rowkey
+	 * @param mutations
+	 * @return
+	 */
+	private static List<String> rowsOf(List<? extends Mutation> mutations) {
+		if (null == mutations) {
+			return null;
+		}
+		List<String> rows = new ArrayList<String>(mutations.size());
+		for (Mutation m : mutations) {
+			rows.add(Bytes.toString(m.getRow()));
+		}
+		return rows;
+	}
+	
+	/**
+	 * 写入数据的估算字节数
+	 * @param mutations
+	 * @return
+	 */
+	static long heapSizeOf(List<? extends Mutation> mutations) {
+		long size = 0;
+		for (Mutation m : mutations) {
+			size += m.heapSize();
+		}
+		return size;
+	}
+	
+	/**
+	 * 记录失败，重试耗尽的计入失败行数
+	 * @param stats
+	 * @param e
+	 */
+	static void recordError(HbaseOperationStats stats, Throwable e) {
+		stats.error();
+		if (e instanceof RetriesExhaustedWithDetailsException) {
+			stats.failedRows(((RetriesExhaustedWithDetailsException) e).getNumExceptions());
+		}
 	}
 	
 	/**
@@ -1082,6 +3127,7 @@ public class HbaseDaoImpl implements HbaseDao {
 				
 				// 删除表
 				hBaseAdmin.deleteTable(tn);
+				onTableWrite(tn.getNameAsString());
 				
 				logger.info("表名为:{}在建表时，被删除！", tn.getNameAsString());
 			} else {
@@ -1158,8 +3204,11 @@ public class HbaseDaoImpl implements HbaseDao {
 	public Result getLastDataByRowkeyCondition(String tableName, byte[] startRowKey,
 												byte[] endRowKey, boolean isReverse)
 																					throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.GET_LAST_DATA);
 		Result rs = null;
 		Table table = null;
+		ResultScanner scanner = null;
 		try {
 			table = connection.getTable(TableName.valueOf(Bytes.toBytes(tableName)));
 			
@@ -1178,7 +3227,7 @@ public class HbaseDaoImpl implements HbaseDao {
 				scan.setCaching(1);
 			}
 			
-			ResultScanner scanner = table.getScanner(scan);
+			scanner = table.getScanner(scan);
 			
 			if (scanner != null) {
 				Iterator<Result> iter = scanner.iterator();
@@ -1186,15 +3235,111 @@ public class HbaseDaoImpl implements HbaseDao {
 					rs = iter.next();	
 				}
 			}
+			stats.read(rs);
 		} catch (Exception e) {
+			recordError(stats, e);
 			e.printStackTrace();
 		}finally {
 			// 关闭连接
+			closeConnect(scanner);
 			closeConnect(table);
+			stats.record(startNanos);
 		}
 		
 		return rs;
 		
 	}
 	
+	/**
+	 * 扇出查询的执行器：阻塞式的dao调用可以提交到这里，受全局和表的并发上限控制
+	 * @return
+	 */
+	public static HbaseExecution getExecution() {
+		return execution;
+	}
+	
+	/**
+	 * 新的扇出作用域：fork多个get/scan并发执行后一起join，一个失败取消其余；用完close
+	 * @return
+	 */
+	public <T> HbaseFanOut<T> fanOut() {
+		return execution.fanOut();
+	}
+	
+	/**
+	 * 按预编译的查询模板并发扫描多个rowkey范围
+	 * @param query
+	 * @param ranges
+	 * @return 与ranges顺序一致
+	 * @throws Exception 任一范围失败时抛出，其余已取消
+	 */
+	public List<List<Result>> getRowsByRanges(final HbasePreparedQuery query,
+												List<HbaseRowRange> ranges) throws Exception {
+		HbaseFanOut<List<Result>> scope = execution.fanOut();
+		try {
+			for (final HbaseRowRange range : ranges) {
+				scope.fork(query.getTableName(), new Callable<List<Result>>() {
+					@Override
+					public List<Result> call() throws Exception {
+						return getRowsByStartAndStop(query, range.getStart(), range.getStop());
+					}
+				});
+			}
+			return scope.join();
+		} finally {
+			scope.close();
+		}
+	}
+	
+	/**
+	 * 批量查询每个前缀下rowkey最大的limit行，各前缀的反向scan并发执行
+	 * @param tableName
+	 * @param prefixes 原rowkey前缀
+	 * @param limit 每个前缀最多返回的行数
+	 * @param columns cf下的列，为空查询全部列
+	 * @return 前缀 -> 按rowkey倒序的行，查询失败的前缀不在map中
+	 * @throws Exception
+	 */
+	public Map<String, List<Result>> getLastDataByPrefixes(String tableName,
+															List<String> prefixes, int limit,
+															List<String> columns) throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.GET_LATEST);
+		try {
+			return latestRows.byPrefix(tableName, prefixes, limit, columns, stats);
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("获取数据失败！", e);
+			return null;
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
+	/**
+	 * 批量查询每个rowkey范围内rowkey最大的limit行，各范围的反向scan并发执行
+	 * @param tableName
+	 * @param ranges 名称 -> 原rowkey范围[start, stop)
+	 * @param limit 每个范围最多返回的行数
+	 * @param columns cf下的列，为空查询全部列
+	 * @return 名称 -> 按rowkey倒序的行，查询失败的范围不在map中
+	 * @throws Exception
+	 */
+	public Map<String, List<Result>> getLastDataByRanges(String tableName,
+															Map<String, HbaseRowRange> ranges,
+															int limit, List<String> columns)
+																							throws Exception {
+		long startNanos = System.nanoTime();
+		HbaseOperationStats stats = HbaseMetrics.stats(tableName, Op.GET_LATEST);
+		try {
+			return latestRows.byRange(tableName, ranges, limit, columns, stats);
+		} catch (IOException e) {
+			recordError(stats, e);
+			logger.error("获取数据失败！", e);
+			return null;
+		} finally {
+			stats.record(startNanos);
+		}
+	}
+	
 }
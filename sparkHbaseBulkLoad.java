@@ -1,39 +1,133 @@
 import org.apache.spark._
-import org.apache.spark.rdd.NewHadoopRDD
-import org.apache.hadoop.hbase.{HBaseConfiguration, HTableDescriptor}
-import org.apache.hadoop.hbase.client.HBaseAdmin
-import org.apache.hadoop.hbase.mapreduce.TableInputFormat
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hbase.HColumnDescriptor
-import org.apache.hadoop.hbase.util.Bytes
-import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.mapred.TableOutputFormat
-import org.apache.hadoop.mapred.JobConf
+import org.apache.spark.rdd.RDD
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.hadoop.hbase.{HBaseConfiguration, KeyValue, TableName}
+import org.apache.hadoop.hbase.client.ConnectionFactory
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable
-import org.apache.hadoop.mapreduce.Job
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat
-import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat
-import org.apache.hadoop.hbase.KeyValue
-import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2
 import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles
- 
-val conf = HBaseConfiguration.create()
-val tableName = "hao"
-val table = new HTable(conf, tableName) 
- 
-conf.set(TableOutputFormat.OUTPUT_TABLE, tableName)
-val job = Job.getInstance(conf)
-job.setMapOutputKeyClass (classOf[ImmutableBytesWritable])
-job.setMapOutputValueClass (classOf[KeyValue])
-HFileOutputFormat.configureIncrementalLoad (job, table)
- 
-// Generate 10 sample data:
+import org.apache.hadoop.hbase.util.Bytes
+import org.apache.hadoop.mapreduce.Job
+
+/**
+ * Sort key of one cell: rowkey, family, qualifier, compared as unsigned bytes,
+ * which is the order HFiles must be written in.
+ */
+case class CellKey(row: Array[Byte], family: Array[Byte], qualifier: Array[Byte])
+
+object CellKey {
+  implicit val ordering: Ordering[CellKey] = new Ordering[CellKey] {
+    override def compare(a: CellKey, b: CellKey): Int = {
+      var c = Bytes.compareTo(a.row, b.row)
+      if (c == 0) c = Bytes.compareTo(a.family, b.family)
+      if (c == 0) c = Bytes.compareTo(a.qualifier, b.qualifier)
+      c
+    }
+  }
+}
+
+/**
+ * One partition per region: a row goes to the last region whose start key is <= the row.
+ */
+class RegionPartitioner(startKeys: Array[Array[Byte]]) extends Partitioner {
+
+  override def numPartitions: Int = startKeys.length
+
+  override def getPartition(key: Any): Int = {
+    val row = key.asInstanceOf[CellKey].row
+    val i = java.util.Arrays.binarySearch(startKeys, row, Bytes.BYTES_COMPARATOR)
+    if (i >= 0) i else math.max(-i - 2, 0)
+  }
+}
+
+object HbaseBulkLoad {
+
+  /**
+   * Bulk load cells (rowkey, family, qualifier, value) into an existing table.
+   * Cells are partitioned by the table's current region boundaries and sorted within
+   * each partition, so every task writes the HFiles of exactly one region; then the
+   * HFiles are handed to the region servers with LoadIncrementalHFiles.
+   * Rows may carry any number of cells in any of the table's column families.
+   *
+   * @param stagingDir HFile output dir on the cluster's filesystem, must not exist;
+   *                   the hbase user needs write access to it. Removed after a successful
+   *                   load; kept on failure so the remaining HFiles can be loaded again.
+   */
+  def bulkLoad(cells: RDD[(Array[Byte], Array[Byte], Array[Byte], Array[Byte])],
+               tableName: String,
+               stagingDir: String,
+               conf: Configuration = HBaseConfiguration.create()): Unit = {
+    val tn = TableName.valueOf(tableName)
+    val connection = ConnectionFactory.createConnection(conf)
+    try {
+      val table = connection.getTable(tn)
+      val locator = connection.getRegionLocator(tn)
+      val admin = connection.getAdmin
+      try {
+        val descriptor = table.getTableDescriptor
+        val startKeys = locator.getStartKeys
+        val families = descriptor.getColumnFamilies.map(f => Bytes.toStringBinary(f.getName)).toSet
+
+        // Per-family compression, bloom filter and block size come from the table
+        val job = Job.getInstance(conf)
+        job.setMapOutputKeyClass(classOf[ImmutableBytesWritable])
+        job.setMapOutputValueClass(classOf[KeyValue])
+        HFileOutputFormat2.configureIncrementalLoad(job, descriptor, locator)
+
+        // One timestamp for the whole load, like a single batch of puts
+        val ts = System.currentTimeMillis()
+        cells
+          .map { c =>
+            // Unknown families would only fail at load time, after all HFiles are written;
+            // checked here, on the map side of the shuffle, before any HFile is written
+            val family = Bytes.toStringBinary(c._2)
+            if (!families.contains(family)) {
+              throw new IllegalArgumentException("column family not in " + tableName + ": " + family)
+            }
+            (CellKey(c._1, c._2, c._3), c._4)
+          }
+          .repartitionAndSortWithinPartitions(new RegionPartitioner(startKeys))
+          .map { case (k, v) =>
+            (new ImmutableBytesWritable(k.row), new KeyValue(k.row, k.family, k.qualifier, ts, v))
+          }
+          .saveAsNewAPIHadoopFile(stagingDir, classOf[ImmutableBytesWritable], classOf[KeyValue],
+            classOf[HFileOutputFormat2], job.getConfiguration)
+
+        // Regions that split during the write are handled by splitting the HFiles
+        val staging = new Path(stagingDir)
+        new LoadIncrementalHFiles(conf).doBulkLoad(staging, admin, table, locator)
+        staging.getFileSystem(conf).delete(staging, true)
+      } finally {
+        admin.close()
+        locator.close()
+        table.close()
+      }
+    } finally {
+      connection.close()
+    }
+  }
+
+  /**
+   * Bulk load whole rows: rowkey -> cells (family, qualifier, value).
+   */
+  def bulkLoadRows(rows: RDD[(Array[Byte], Seq[(Array[Byte], Array[Byte], Array[Byte])])],
+                   tableName: String,
+                   stagingDir: String,
+                   conf: Configuration = HBaseConfiguration.create()): Unit = {
+    bulkLoad(rows.flatMap { case (row, cs) => cs.map(c => (row, c._1, c._2, c._3)) },
+      tableName, stagingDir, conf)
+  }
+}
+
+// Generate 10 sample rows with two columns in cf and one in cf2:
 val num = sc.parallelize(1 to 10)
-val rdd = num.map(x=>{
-    val kv: KeyValue = new KeyValue(Bytes.toBytes(x), "cf".getBytes(), "c1".getBytes(), "value_xxx".getBytes() )
-    (new ImmutableBytesWritable(Bytes.toBytes(x)), kv)
+val rows = num.map(x => {
+    (Bytes.toBytes(x), Seq(
+      (Bytes.toBytes("cf"), Bytes.toBytes("c1"), Bytes.toBytes("value_xxx")),
+      (Bytes.toBytes("cf"), Bytes.toBytes("c2"), Bytes.toBytes(x.toString)),
+      (Bytes.toBytes("cf2"), Bytes.toBytes("c1"), Bytes.toBytes("value_yyy"))))
 })
- 
+
 // Directly bulk load to Hbase/MapRDB tables.
-rdd.saveAsNewAPIHadoopFile("/tmp/xxxx19", classOf[ImmutableBytesWritable], classOf[KeyValue], classOf[HFileOutputFormat], job.getConfiguration())
+HbaseBulkLoad.bulkLoadRows(rows, "hao", "/tmp/hbase-bulkload-" + System.currentTimeMillis())